@@ -0,0 +1,102 @@
+package se.walkercrou.geostream.net;
+
+import android.content.Context;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.walkercrou.geostream.net.response.JsonResourceReader;
+import se.walkercrou.geostream.post.Comment;
+
+/**
+ * Parses a page of comments with {@link Comment#PARSER} and the way responses used to, looking up
+ * the static parse() method through reflection for every response and invoking it for every
+ * element, and compares the speed of both.
+ */
+public class ResourceParserTest extends TestCase {
+    private static final String TAG = "ResourceParserTest";
+    private static final int COMMENTS = 200;
+    private static final int ROUNDS = 200;
+
+    private byte[] page;
+
+    @Override
+    protected void setUp() throws IOException {
+        // [{"id": 0, "content": "...", "created": "2015-12-16T19:11:46.202321Z"}, ...]
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(bytes, "UTF-8"));
+        out.beginArray();
+        for (int i = 0; i < COMMENTS; i++) {
+            out.beginObject();
+            out.name(Resource.PARAM_ID).value(i);
+            out.name(Comment.PARAM_CONTENT).value("Comment number " + i + " on this post");
+            out.name(Resource.PARAM_CREATED).value("2015-12-16T19:11:46.202321Z");
+            out.endObject();
+        }
+        out.endArray();
+        out.close();
+        page = bytes.toByteArray();
+    }
+
+    public void testParsersAgree() throws Exception {
+        List<Comment> typed = parseTyped();
+        List<Comment> reflective = parseReflective();
+        assertEquals(COMMENTS, typed.size());
+        assertEquals(COMMENTS, reflective.size());
+        for (int i = 0; i < COMMENTS; i++) {
+            assertEquals(i, typed.get(i).getId());
+            assertEquals(typed.get(i).getContent(), reflective.get(i).getContent());
+        }
+    }
+
+    public void testBenchmark() throws Exception {
+        // warm up both paths so that neither pays for class loading
+        parseTyped();
+        parseReflective();
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            parseReflective();
+        long reflective = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            parseTyped();
+        long typed = System.nanoTime() - start;
+
+        Log.i(TAG, ROUNDS + " pages of " + COMMENTS + " comments: reflective "
+                + reflective / 1000000 + " ms, ResourceParser " + typed / 1000000 + " ms");
+    }
+
+    private List<Comment> parseTyped() throws Exception {
+        List<Comment> results = new ArrayList<>();
+        ResourceReader in = new JsonResourceReader(new ByteArrayInputStream(page));
+        in.beginArray();
+        while (in.hasNext())
+            results.add(Comment.PARSER.parse(null, in));
+        in.endArray();
+        in.close();
+        return results;
+    }
+
+    private List<Comment> parseReflective() throws Exception {
+        List<Comment> results = new ArrayList<>();
+        Method parser = Comment.class.getMethod("parse", Context.class, ResourceReader.class);
+        ResourceReader in = new JsonResourceReader(new ByteArrayInputStream(page));
+        in.beginArray();
+        while (in.hasNext())
+            results.add((Comment) parser.invoke(null, null, in));
+        in.endArray();
+        in.close();
+        return results;
+    }
+}
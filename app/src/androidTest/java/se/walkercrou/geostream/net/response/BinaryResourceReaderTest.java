@@ -0,0 +1,103 @@
+package se.walkercrou.geostream.net.response;
+
+import android.util.JsonToken;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads hand encoded MessagePack documents, including the 16 bit array and map headers that every
+ * full page of results uses.
+ */
+public class BinaryResourceReaderTest extends TestCase {
+    private static final int ITEMS = 20; // more than fit in a fixarray or fixmap
+
+    public void testArray16OfMap16() throws IOException {
+        // [{"k0": 0, "k1": 1, ...}, ...] with ITEMS maps of ITEMS entries
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(0xdc);
+        out.writeShort(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            out.writeByte(0xde);
+            out.writeShort(ITEMS);
+            for (int j = 0; j < ITEMS; j++) {
+                writeString(out, "k" + j);
+                out.writeByte(0xd2);
+                out.writeInt(i * 1000 + j);
+            }
+        }
+
+        BinaryResourceReader in = reader(bytes);
+        assertEquals(JsonToken.BEGIN_ARRAY, in.peek());
+        in.beginArray();
+        for (int i = 0; i < ITEMS; i++) {
+            assertTrue(in.hasNext());
+            assertEquals(JsonToken.BEGIN_OBJECT, in.peek());
+            in.beginObject();
+            for (int j = 0; j < ITEMS; j++) {
+                assertEquals(JsonToken.NAME, in.peek());
+                assertEquals("k" + j, in.nextName());
+                assertEquals(JsonToken.NUMBER, in.peek());
+                assertEquals(i * 1000 + j, in.nextInt());
+            }
+            assertEquals(JsonToken.END_OBJECT, in.peek());
+            in.endObject();
+        }
+        assertEquals(JsonToken.END_ARRAY, in.peek());
+        in.endArray();
+        assertEquals(JsonToken.END_DOCUMENT, in.peek());
+    }
+
+    public void testSkipMap16AndArray32() throws IOException {
+        // {"skipped": {ITEMS entries}, "list": [ITEMS strings], "kept": true}
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(0x83);
+        writeString(out, "skipped");
+        out.writeByte(0xde);
+        out.writeShort(ITEMS);
+        for (int j = 0; j < ITEMS; j++) {
+            writeString(out, "k" + j);
+            writeString(out, "value " + j);
+        }
+        writeString(out, "list");
+        out.writeByte(0xdd);
+        out.writeInt(ITEMS);
+        for (int j = 0; j < ITEMS; j++)
+            writeString(out, "item " + j);
+        writeString(out, "kept");
+        out.writeByte(0xc3);
+
+        BinaryResourceReader in = reader(bytes);
+        in.beginObject();
+        assertEquals("skipped", in.nextName());
+        assertEquals(JsonToken.BEGIN_OBJECT, in.peek());
+        in.skipValue();
+        assertEquals("list", in.nextName());
+        assertEquals(JsonToken.BEGIN_ARRAY, in.peek());
+        in.beginArray();
+        for (int j = 0; j < ITEMS; j++)
+            assertEquals("item " + j, in.nextString());
+        in.endArray();
+        assertEquals("kept", in.nextName());
+        assertTrue(in.nextBoolean());
+        in.endObject();
+        assertEquals(JsonToken.END_DOCUMENT, in.peek());
+    }
+
+    private static BinaryResourceReader reader(ByteArrayOutputStream bytes) {
+        return new BinaryResourceReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes("UTF-8");
+        out.writeByte(0xd9);
+        out.writeByte(utf8.length);
+        out.write(utf8);
+    }
+}
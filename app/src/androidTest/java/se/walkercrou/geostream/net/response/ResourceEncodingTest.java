@@ -0,0 +1,261 @@
+package se.walkercrou.geostream.net.response;
+
+import android.util.JsonWriter;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.post.Comment;
+import se.walkercrou.geostream.post.Post;
+
+/**
+ * Encodes a full page of a range request the way the server renders it as JSON and as binary,
+ * checks that both decode to the same posts, and compares their size and decode time.
+ */
+public class ResourceEncodingTest extends TestCase {
+    private static final String TAG = "ResourceEncodingTest";
+    private static final int POSTS = 200; // the server's MAX_RANGE_LIMIT
+    private static final int MAX_COMMENTS = 8;
+    private static final int ROUNDS = 50;
+
+    private byte[] json, binary;
+
+    @Override
+    protected void setUp() throws IOException {
+        List<Object> page = page(new Random(1));
+        json = encodeJson(page);
+        binary = encodeBinary(page);
+    }
+
+    public void testDecodesAlike() throws IOException, ParseException {
+        assertEquals(decode(new JsonResourceReader(new ByteArrayInputStream(json))),
+                decode(new BinaryResourceReader(new ByteArrayInputStream(binary))));
+    }
+
+    public void testBenchmark() throws IOException, ParseException {
+        // warm up both readers so that neither pays for class loading
+        decode(new JsonResourceReader(new ByteArrayInputStream(json)));
+        decode(new BinaryResourceReader(new ByteArrayInputStream(binary)));
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            decode(new JsonResourceReader(new ByteArrayInputStream(json)));
+        long jsonTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++)
+            decode(new BinaryResourceReader(new ByteArrayInputStream(binary)));
+        long binaryTime = System.nanoTime() - start;
+
+        Log.i(TAG, "page of " + POSTS + " posts: JSON " + json.length + " bytes, "
+                + jsonTime / ROUNDS / 1000 + " us to decode; binary " + binary.length + " bytes, "
+                + binaryTime / ROUNDS / 1000 + " us to decode");
+    }
+
+    private static List<Object> page(Random random) {
+        // posts around one city, as PostSerializer renders them, with a few comments each
+        long now = 1450293106202L;
+        List<Object> posts = new ArrayList<>();
+        for (int i = 0; i < POSTS; i++) {
+            Map<String, Object> post = new LinkedHashMap<>();
+            int id = 10000 + i;
+            long created = now - random.nextInt(24 * 60 * 60 * 1000);
+            post.put(Resource.PARAM_ID, id);
+            post.put(Resource.PARAM_CREATED, new Timestamp(created, random.nextInt(1000)));
+            post.put(Post.PARAM_LAT, 59.3293 + random.nextDouble() / 10);
+            post.put(Post.PARAM_LNG, 18.0686 + random.nextDouble() / 10);
+            post.put(Post.PARAM_LIFETIME, 1 + random.nextInt(24));
+            post.put(Post.PARAM_MEDIA_FILE, "http://geostream.example.com/media/posts/post_" + id
+                    + (random.nextBoolean() ? ".mp4" : ".jpeg"));
+            List<Object> comments = new ArrayList<>();
+            for (int j = random.nextInt(MAX_COMMENTS + 1); j > 0; j--) {
+                Map<String, Object> comment = new LinkedHashMap<>();
+                comment.put(Resource.PARAM_ID, id * 10 + j);
+                comment.put(Comment.PARAM_POST, id);
+                comment.put(Resource.PARAM_CREATED, new Timestamp(created + j * 60000,
+                        random.nextInt(1000)));
+                comment.put(Comment.PARAM_CONTENT, "Comment number " + j + " on this post");
+                comments.add(comment);
+            }
+            post.put(Post.PARAM_COMMENTS, comments);
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    private static List<String> decode(ResourceReader in) throws IOException, ParseException {
+        // reads the fields like Post.parse(), which needs an application to store posts in
+        List<String> posts = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            StringBuilder post = new StringBuilder();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                switch (name) {
+                    case Resource.PARAM_ID:
+                    case Post.PARAM_LIFETIME:
+                        post.append(in.nextInt());
+                        break;
+                    case Resource.PARAM_CREATED:
+                        post.append(in.nextTimestamp());
+                        break;
+                    case Post.PARAM_LAT:
+                    case Post.PARAM_LNG:
+                        post.append(in.nextDouble());
+                        break;
+                    case Post.PARAM_MEDIA_FILE:
+                        post.append(in.nextString());
+                        break;
+                    case Post.PARAM_COMMENTS:
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            Comment comment = Comment.PARSER.parse(null, in);
+                            post.append(comment.getId()).append(comment.getContent());
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+                post.append(',');
+            }
+            in.endObject();
+            posts.add(post.toString());
+        }
+        in.endArray();
+        in.close();
+        return posts;
+    }
+
+    private static byte[] encodeJson(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter out = new JsonWriter(new OutputStreamWriter(bytes, "UTF-8"));
+        writeJson(out, value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeJson(JsonWriter out, Object value) throws IOException {
+        if (value instanceof Map) {
+            out.beginObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                out.name(entry.getKey());
+                writeJson(out, entry.getValue());
+            }
+            out.endObject();
+        } else if (value instanceof List) {
+            out.beginArray();
+            for (Object item : (List<Object>) value)
+                writeJson(out, item);
+            out.endArray();
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else {
+            out.value(value.toString());
+        }
+    }
+
+    private static byte[] encodeBinary(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBinary(out, value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeBinary(DataOutputStream out, Object value) throws IOException {
+        // the same types the server's BinaryRenderer picks
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            writeHeader(out, map.size(), 0x80, 0xde);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                writeBinary(out, entry.getKey());
+                writeBinary(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            writeHeader(out, list.size(), 0x90, 0xdc);
+            for (Object item : list)
+                writeBinary(out, item);
+        } else if (value instanceof Integer) {
+            writeInteger(out, (Integer) value);
+        } else if (value instanceof Timestamp) {
+            writeInteger(out, ((Timestamp) value).millis);
+        } else if (value instanceof Double) {
+            out.writeByte(0xcb);
+            out.writeDouble((Double) value);
+        } else {
+            byte[] utf8 = value.toString().getBytes("UTF-8");
+            if (utf8.length < 32) {
+                out.writeByte(0xa0 | utf8.length);
+            } else {
+                out.writeByte(0xd9);
+                out.writeByte(utf8.length);
+            }
+            out.write(utf8);
+        }
+    }
+
+    private static void writeInteger(DataOutputStream out, long value) throws IOException {
+        if (value >= 0 && value <= 0x7f) {
+            out.writeByte((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.writeByte(0xd2);
+            out.writeInt((int) value);
+        } else {
+            out.writeByte(0xd3);
+            out.writeLong(value);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int size, int fix, int type16)
+            throws IOException {
+        if (size < 16) {
+            out.writeByte(fix | size);
+        } else {
+            out.writeByte(type16);
+            out.writeShort(size);
+        }
+    }
+
+    /**
+     * A creation date, sent as e.g. "2015-12-16T19:11:46.202321Z" in JSON and as milliseconds in
+     * binary.
+     */
+    private static class Timestamp {
+        private final long millis;
+        private final int micros; // below the millis
+
+        private Timestamp(long millis, int micros) {
+            this.millis = millis;
+            this.micros = micros;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format(millis) + String.format(Locale.US, "%03dZ", micros);
+        }
+    }
+}
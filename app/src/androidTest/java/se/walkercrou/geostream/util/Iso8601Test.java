@@ -0,0 +1,116 @@
+package se.walkercrou.geostream.util;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks the timestamps the server sends against {@link SimpleDateFormat}, and compares the speed
+ * of both on the same timestamps.
+ */
+public class Iso8601Test extends TestCase {
+    private static final String TAG = "Iso8601Test";
+    private static final int BENCHMARK_VALUES = 1000;
+    private static final int BENCHMARK_ROUNDS = 200;
+
+    public void testUtc() throws ParseException {
+        assertEquals(1450293106202L, Iso8601.parse("2015-12-16T19:11:46.202321Z"));
+        assertEquals(1450293106000L, Iso8601.parse("2015-12-16T19:11:46Z"));
+        assertEquals(1450293106000L, Iso8601.parse("2015-12-16T19:11:46"));
+        assertEquals(1450293106000L, Iso8601.parse("2015-12-16 19:11:46"));
+        assertEquals(0, Iso8601.parse("1970-01-01T00:00:00Z"));
+    }
+
+    public void testFraction() throws ParseException {
+        assertEquals(500, Iso8601.parse("1970-01-01T00:00:00.5Z"));
+        assertEquals(20, Iso8601.parse("1970-01-01T00:00:00.02Z"));
+        assertEquals(999, Iso8601.parse("1970-01-01T00:00:00.999999999Z"));
+    }
+
+    public void testOffset() throws ParseException {
+        // all the same instant
+        long utc = Iso8601.parse("2015-12-16T19:11:46Z");
+        assertEquals(utc, Iso8601.parse("2015-12-16T20:11:46+01:00"));
+        assertEquals(utc, Iso8601.parse("2015-12-16T20:11:46+0100"));
+        assertEquals(utc, Iso8601.parse("2015-12-16T20:11:46+01"));
+        assertEquals(utc, Iso8601.parse("2015-12-16T13:41:46-05:30"));
+    }
+
+    public void testCalendar() throws ParseException {
+        // leap days, the end of a century that is not a leap year, and dates before the epoch
+        assertEquals(951782400000L, Iso8601.parse("2000-02-29T00:00:00Z"));
+        assertEquals(4107542400000L, Iso8601.parse("2100-03-01T00:00:00Z"));
+        assertEquals(-1000L, Iso8601.parse("1969-12-31T23:59:59Z"));
+    }
+
+    public void testMalformed() {
+        String[] malformed = {"", "2015", "2015-12-16", "2015-12-16T19:11", "2015/12/16T19:11:46Z",
+                "2015-13-16T19:11:46Z", "2015-12-16T24:11:46Z", "2015-12-16T19:11:46.Z",
+                "2015-12-16T19:11:46Zjunk", "2015-12-16T19:11:46+1"};
+        for (String s : malformed) {
+            try {
+                Iso8601.parse(s);
+                fail("parsed malformed timestamp: " + s);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
+    public void testMatchesSimpleDateFormat() throws ParseException {
+        SimpleDateFormat format = utcFormat();
+        for (String s : timestamps(new Random(1))) {
+            long expected = format.parse(s.substring(0, 23)).getTime();
+            assertEquals(s, expected, Iso8601.parse(s));
+        }
+    }
+
+    public void testBenchmark() throws ParseException {
+        // the server's timestamps, with microseconds, parsed as before (cut down to millis for a
+        // shared SimpleDateFormat) and with Iso8601
+        String[] timestamps = timestamps(new Random(2));
+        SimpleDateFormat format = utcFormat();
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String s : timestamps)
+                sum += format.parse(s.substring(0, 23)).getTime();
+        }
+        long simpleDateFormat = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (String s : timestamps)
+                sum -= Iso8601.parse(s);
+        }
+        long iso8601 = System.nanoTime() - start;
+
+        assertEquals(0, sum);
+        int parses = BENCHMARK_VALUES * BENCHMARK_ROUNDS;
+        Log.i(TAG, parses + " parses: SimpleDateFormat " + simpleDateFormat / 1000000 + " ms, "
+                + "Iso8601 " + iso8601 / 1000000 + " ms");
+    }
+
+    private static String[] timestamps(Random random) {
+        // e.g. "2015-12-16T19:11:46.202321Z" between 1970 and 2100, as sent by the server
+        SimpleDateFormat format = utcFormat();
+        String[] timestamps = new String[BENCHMARK_VALUES];
+        for (int i = 0; i < timestamps.length; i++) {
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            timestamps[i] = format.format(millis) + String.format(Locale.US, "%03dZ",
+                    random.nextInt(1000));
+        }
+        return timestamps;
+    }
+
+    private static SimpleDateFormat utcFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
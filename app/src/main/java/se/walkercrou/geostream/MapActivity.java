@@ -24,22 +24,25 @@ import com.google.android.gms.maps.UiSettings;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.VisibleRegion;
 import com.melnykov.fab.FloatingActionButton;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.InterruptedIOException;
 import java.util.List;
-import java.util.Map;
 
 import se.walkercrou.geostream.camera.CameraActivity;
+import se.walkercrou.geostream.net.response.Response;
 import se.walkercrou.geostream.post.Post;
+import se.walkercrou.geostream.post.PostEvent;
+import se.walkercrou.geostream.post.PostStore;
+import se.walkercrou.geostream.post.PostSummary;
 import se.walkercrou.geostream.post.PostDetailActivity;
 import se.walkercrou.geostream.util.E;
 import se.walkercrou.geostream.util.G;
 import se.walkercrou.geostream.util.LocationApi;
+import se.walkercrou.geostream.util.RankedList;
+import se.walkercrou.geostream.util.Tile;
 
 import static com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
 import static com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
@@ -63,7 +66,13 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
     private GoogleMap map;
     private LocationApi locationApi;
     private boolean lostLocation;
-    private final Map<Marker, Post> posts = new HashMap<>(); // map the map markers to posts
+    private int overflowCount; // posts in view that were left out by the last refresh
+    private PostMarkers markers; // map the map markers to posts
+    private final RefreshScheduler refreshScheduler = new RefreshScheduler(this::refresh);
+    private TileCache tileCache; // posts retrieved per map tile
+    private PostStream postStream;
+    private volatile boolean dialogIfNoneStored; // next refresh shows a dialog if nothing stored
+    private boolean offline; // last refresh could not reach the server
 
     // ui stuff
     private FloatingActionButton cameraBtn, refreshBtn;
@@ -77,6 +86,9 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
         requestWindowFeature(Window.FEATURE_NO_TITLE); // hide action bar
         setContentView(R.layout.activity_map);
         G.init(this); // initialize singleton utility class
+        Post.outbox(this); // resume sending anything queued before the app was killed
+        tileCache = new TileCache(PostStore.get(this));
+        postStream = new PostStream(this, tileCache, this::onPostEvents);
 
         // setup buttons
         cameraBtn = (FloatingActionButton) findViewById(R.id.fab_camera);
@@ -98,6 +110,7 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
         // attempt to connect to location services
         locationApi = new LocationApi(this);
         locationApi.connect(this, this);
+        postStream.start(); // catches up on what was missed while stopped
         super.onStart();
     }
 
@@ -105,9 +118,17 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
     protected void onStop() {
         // disconnect from location services
         locationApi.disconnect();
+        postStream.stop();
+        G.app.localState.flush(); // the process may be killed while in the background
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        refreshScheduler.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public void onConnected(Bundle bundle) {
         G.i("Connected to location services.");
@@ -169,6 +190,7 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
     @Override
     public void onMapReady(GoogleMap map) {
         this.map = map;
+        markers = new PostMarkers(map);
 
         // get location
         Location location = locationApi.getLastLocation();
@@ -187,15 +209,15 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
         map.setMyLocationEnabled(true);
 
         centerMapOnLocation(location);
-        refreshWithDialog(); // place posts on map
+        refreshFromStore(); // place posts on map
 
         G.i("Map initialized.");
     }
 
     @Override
     public boolean onMarkerClick(Marker marker) {
-        refreshWithDialog(); // refresh map to reflect any changes
-        if (!posts.containsKey(marker)) {
+        refreshInBackground(); // refresh map to reflect any changes
+        if (markers.getPost(marker) == null) {
             Toast.makeText(this, R.string.error_post_no_longer_exists, Toast.LENGTH_SHORT).show();
             return true;
         }
@@ -213,23 +235,33 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
 
     /**
      * Show dialog while refreshing the posts on the map to reflect any new posts or deleted posts
-     * on the server.
+     * on the server. The refresh is sent even if the map has not moved.
      */
     public void refreshWithDialog() {
-        progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
-                getString(R.string.prompt_get_resource), true); // show dialog
-        refreshInBackground();
+        showProgressDialog();
+        tileCache.invalidate();
+        refreshScheduler.request(map.getProjection().getVisibleRegion(), true);
+    }
+
+    /**
+     * Places the posts stored on the device on the map right away and then refreshes them from the
+     * server. Unlike {@link #refreshWithDialog()}, a dialog is only shown if there are no stored
+     * posts in view.
+     */
+    public void refreshFromStore() {
+        dialogIfNoneStored = true;
+        refreshScheduler.request(map.getProjection().getVisibleRegion(), true);
     }
 
     /**
-     * Refreshes the map in a background thread.
+     * Refreshes the map in the background if it has moved since the last refresh.
      */
     public void refreshInBackground() {
-        VisibleRegion visibleRegion = map.getProjection().getVisibleRegion();
-        new Thread(() -> refresh(visibleRegion)).start();
+        refreshScheduler.request(map.getProjection().getVisibleRegion(), false);
     }
 
-    private void refresh(VisibleRegion visibleRegion) {
+    private boolean refresh(VisibleRegion visibleRegion) {
+        // called on the refresh scheduler's worker thread
 
         // determine range of posts to retrieve
         LatLng topLeftCorner = visibleRegion.farLeft;
@@ -240,64 +272,94 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
         double fromLng = Math.min(topLeftCorner.longitude, bottomRightCorner.longitude);
         double toLng = Math.max(topLeftCorner.longitude, bottomRightCorner.longitude);
 
-        // get posts within visible range from server
-        List<Post> newPosts;
+        // show the posts stored on the device while the tiles that are not cached are retrieved
+        boolean dialog = dialogIfNoneStored;
+        dialogIfNoneStored = false;
+        RankedList<PostSummary> stored = tileCache.stored(fromLat, toLat, fromLng, toLng);
+        if (stored != null) {
+            handler.post(() -> {
+                if (stored.isEmpty()) {
+                    if (dialog)
+                        showProgressDialog();
+                    return;
+                }
+                markers.reconcile(stored);
+                if (progressDialog != null)
+                    progressDialog.dismiss();
+                G.i("Map shows " + stored.size() + " stored posts.");
+            });
+        }
+
+        // get posts within visible range, only tiles that are not cached come from the server
+        RankedList<PostSummary> newPosts;
         try {
-            newPosts = Post.range(this, fromLat, toLat, fromLng, toLng, e -> E.internal(this, e));
+            newPosts = tileCache.range(this, fromLat, toLat, fromLng, toLng,
+                    e -> handler.post(() -> E.internal(this, e)));
+        } catch (InterruptedIOException e) {
+            return false; // the map has moved on, a newer refresh is scheduled
         } catch (IOException e) {
             e.printStackTrace();
-            handler.post(() -> E.connection(this, (d, w) -> refreshWithDialog()));
-            return;
+            handler.post(() -> {
+                if (progressDialog != null)
+                    progressDialog.dismiss();
+                if (stored == null || stored.isEmpty())
+                    E.connection(this, (d, w) -> refreshWithDialog()).show();
+                else if (!offline) {
+                    // the stored posts are still on the map, say once that they may be outdated
+                    Toast.makeText(this, R.string.prompt_showing_stored_posts, Toast.LENGTH_LONG)
+                            .show();
+                }
+                offline = true;
+            });
+            return false;
         }
 
-        // post list should never be null at this point
-        if (newPosts == null)
-            throw new RuntimeException("null Post list with no error");
-
-        // remove posts that are no longer present in list
-        Iterator<Map.Entry<Marker, Post>> iter = posts.entrySet().iterator();
-        int removed = 0;
-        while (iter.hasNext()) {
-            Map.Entry<Marker, Post> entry = iter.next();
-            Marker marker = entry.getKey();
-            Post oldPost = entry.getValue();
-
-            // look for posts that are not in the newPosts list
-            boolean found = false;
-            for (Post newPost : newPosts) {
-                if (oldPost.getId() == newPost.getId())
-                    found = true;
-            }
-
-            if (!found) {
-                handler.post(marker::remove); // post to main thread
-                iter.remove();
-                removed++;
-            }
+        // a null post list means the error has already been reported, keep the worker alive
+        if (newPosts == null) {
+            if (progressDialog != null)
+                handler.post(progressDialog::dismiss);
+            return false;
         }
-
-        // add new posts
-        int added = 0;
-        for (Post newPost : newPosts) {
-            boolean found = false;
-            for (Post oldPost : posts.values()) {
-                if (oldPost.getId() == newPost.getId())
-                    found = true;
-            }
-
-            if (!found && !newPost.isHidden()) {
-                handler.post(() -> placePost(newPost)); // post to main thread
-                added++;
+        if (Thread.currentThread().isInterrupted())
+            return false; // stale
+
+        // have changes to the region pushed rather than polling for them
+        postStream.subscribe(Tile.covering(fromLat, toLat, fromLng, toLng, TileCache.ZOOM));
+
+        // apply the changes to the map in one pass on the main thread
+        handler.post(() -> {
+            PostMarkers.Diff diff = markers.reconcile(newPosts);
+            offline = false;
+            if (progressDialog != null)
+                progressDialog.dismiss();
+
+            // dense areas only show the newest posts, say how many more there are
+            int overflow = newPosts.getOverflowCount();
+            if (overflow > 0 && overflow != overflowCount) {
+                Toast.makeText(this, getString(R.string.prompt_posts_overflow, overflow),
+                        Toast.LENGTH_LONG).show();
             }
-        }
-
-        if (progressDialog != null)
-            progressDialog.dismiss();
+            overflowCount = overflow;
+
+            // print some info about task
+            G.i("Map refreshed.");
+            G.i("  Removed: " + diff.removed.size());
+            G.i("  Added: " + diff.added.size());
+            G.i("  Left out: " + overflow);
+        });
+        return true;
+    }
 
-        // print some info about task
-        G.i("Map refreshed.");
-        G.i("  Removed: " + removed);
-        G.i("  Added: " + added);
+    private void onPostEvents(List<PostEvent> events) {
+        // called on the post stream's worker thread, the tile cache is already up to date
+        handler.post(() -> {
+            if (markers == null)
+                return; // map not ready yet
+            PostMarkers.Diff diff = markers.apply(events);
+            G.i("Map updated by " + events.size() + " events.");
+            G.i("  Removed: " + diff.removed.size());
+            G.i("  Added: " + diff.added.size());
+        });
     }
 
     // -- Methods called from XML --
@@ -315,6 +377,13 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
 
     // -----------------------------
 
+    private void showProgressDialog() {
+        if (progressDialog == null || !progressDialog.isShowing()) {
+            progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
+                    getString(R.string.prompt_get_resource), true); // show dialog
+        }
+    }
+
     private void setupMap() {
         FragmentManager fm = getSupportFragmentManager();
         ((SupportMapFragment) fm.findFragmentById(R.id.map)).getMapAsync(this);
@@ -326,21 +395,24 @@ public class MapActivity extends FragmentActivity implements OnMarkerClickListen
         ));
     }
 
-    private void placePost(Post post) {
-        // place a marker on the map linked to the post
-        Location loc = post.getLocation();
-        LatLng pos = new LatLng(loc.getLatitude(), loc.getLongitude());
-        Marker marker = map.addMarker(new MarkerOptions().position(pos));
-        posts.put(marker, post);
-        G.i("Post #" + post.getId() + " placed on map at " + pos);
-    }
-
     private void openPost(Marker marker) {
-        // start a post detail activity
-        Post post = posts.get(marker);
-        G.i("Starting PostDetailActivity for Post #" + post.getId() + '.');
-        Intent intent = new Intent(this, PostDetailActivity.class);
-        intent.putExtra(PostDetailActivity.EXTRA_POST, post);
-        startActivity(intent);
+        // the map only has the summary, retrieve the full post before starting its activity
+        PostSummary summary = markers.getPost(marker);
+        G.i("Loading Post #" + summary.getId() + '.');
+        ProgressDialog dialog = ProgressDialog.show(this, getString(R.string.title_wait),
+                getString(R.string.prompt_get_resource), true);
+        summary.load(this, response -> {
+            dialog.dismiss();
+            if (response != null && response.getStatusCode() == Response.STATUS_NOT_FOUND) {
+                Toast.makeText(this, R.string.error_post_no_longer_exists, Toast.LENGTH_SHORT)
+                        .show();
+                return;
+            }
+            if (!Response.check(response, e -> E.internal(this, e).show()))
+                return;
+            Post post = response.get();
+            G.i("Starting PostDetailActivity for Post #" + post.getId() + '.');
+            post.startActivity(this);
+        });
     }
 }
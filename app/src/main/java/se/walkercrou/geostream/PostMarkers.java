@@ -0,0 +1,128 @@
+package se.walkercrou.geostream;
+
+import android.location.Location;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.walkercrou.geostream.post.PostEvent;
+import se.walkercrou.geostream.post.PostSummary;
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Keeps the markers on a {@link GoogleMap} in sync with the posts retrieved from the server.
+ * Markers are indexed by post id so that a new list of posts can be reconciled with the markers
+ * already on the map in linear time. Markers may only be added or removed on the main thread but
+ * the post behind a marker may be looked up from any thread.
+ */
+public final class PostMarkers {
+    private final GoogleMap map;
+    private final Map<Integer, Marker> markers = new HashMap<>(); // post id -> marker, main thread
+    private final Map<Marker, PostSummary> posts = new ConcurrentHashMap<>(); // marker -> post
+
+    public PostMarkers(GoogleMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Returns the post that the specified marker was placed for.
+     *
+     * @param marker on map
+     * @return post or null if the marker is no longer on the map
+     */
+    public PostSummary getPost(Marker marker) {
+        return posts.get(marker);
+    }
+
+    /**
+     * Updates the map so that exactly the specified posts that are not hidden have markers. Posts
+     * that already have a marker keep it. Must be called on the main thread.
+     *
+     * @param newPosts posts that should be on the map
+     * @return the changes made to the map
+     */
+    public Diff reconcile(List<PostSummary> newPosts) {
+        // index the new posts by id
+        Map<Integer, PostSummary> incoming = new HashMap<>(newPosts.size() * 2);
+        for (PostSummary post : newPosts) {
+            if (!post.isHidden())
+                incoming.put(post.getId(), post);
+        }
+
+        // remove markers of posts that are gone and refresh the ones that are still present
+        Diff diff = new Diff();
+        Iterator<Map.Entry<Integer, Marker>> iter = markers.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, Marker> entry = iter.next();
+            Marker marker = entry.getValue();
+            PostSummary post = incoming.remove(entry.getKey());
+            if (post == null) {
+                iter.remove();
+                diff.removed.add(posts.remove(marker));
+                marker.remove();
+            } else
+                posts.put(marker, post);
+        }
+
+        // what's left is new
+        for (PostSummary post : incoming.values()) {
+            place(post);
+            diff.added.add(post);
+        }
+        return diff;
+    }
+
+    /**
+     * Updates the map with the specified events pushed by the server: created posts that are not
+     * hidden get a marker and removed posts lose theirs. Must be called on the main thread.
+     *
+     * @param events to apply, in the order they happened
+     * @return the changes made to the map
+     */
+    public Diff apply(List<PostEvent> events) {
+        Diff diff = new Diff();
+        for (PostEvent event : events) {
+            PostSummary post = event.getPost();
+            Marker marker = markers.get(post.getId());
+            if (event.isCreated()) {
+                if (marker == null && !post.isHidden()) {
+                    place(post);
+                    diff.added.add(post);
+                }
+            } else if (marker != null) {
+                markers.remove(post.getId());
+                diff.removed.add(posts.remove(marker));
+                marker.remove();
+            }
+        }
+        return diff;
+    }
+
+    private void place(PostSummary post) {
+        // place a marker on the map linked to the post
+        Location loc = post.getLocation();
+        LatLng pos = new LatLng(loc.getLatitude(), loc.getLongitude());
+        Marker marker = map.addMarker(new MarkerOptions().position(pos));
+        markers.put(post.getId(), marker);
+        posts.put(marker, post);
+        G.i("Post #" + post.getId() + " placed on map at " + pos);
+    }
+
+    /**
+     * The posts that were added to and removed from the map by a call to
+     * {@link #reconcile(List)} or {@link #apply(List)}.
+     */
+    public static class Diff {
+        public final List<PostSummary> added = new ArrayList<>();
+        public final List<PostSummary> removed = new ArrayList<>();
+    }
+}
@@ -0,0 +1,212 @@
+package se.walkercrou.geostream;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.request.ResourceListRequest;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+import se.walkercrou.geostream.post.Post;
+import se.walkercrou.geostream.post.PostEvent;
+import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.Tile;
+
+/**
+ * Subscribes to the events of the posts within a set of map tiles by long-polling the server on
+ * a worker thread. Events are applied to the {@link TileCache} and handed to a {@link Listener}.
+ * While the stream is connected the subscribed tiles are kept fresh in the cache, so the regular
+ * map refreshes do not go to the server. If the stream fails, the tiles go stale after the
+ * {@link TileCache#TTL} and polling takes over until the stream reconnects.
+ */
+public final class PostStream implements Runnable {
+    /**
+     * Time (in seconds) the server waits for an event before responding without any.
+     */
+    public static final int TIMEOUT = 25;
+    /**
+     * Time (in millis) to wait before reconnecting after the first failure, doubled after each
+     * further failure.
+     */
+    public static final long RETRY_DELAY = 5 * 1000;
+    /**
+     * Maximum time (in millis) to wait before reconnecting.
+     */
+    public static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    private static final int STATUS_GONE = 410;
+    private static final int NO_CURSOR = -1;
+
+    private final Context c;
+    private final TileCache tileCache;
+    private final Listener listener;
+    private List<Tile> tiles; // subscribed tiles, null until subscribed
+    private Thread worker; // null while stopped
+    private int cursor = NO_CURSOR; // id of the last event seen
+    private long cursorTime; // time the cursor was received, no events are missed after it
+    private volatile boolean connected;
+
+    public PostStream(Context c, TileCache tileCache, Listener listener) {
+        this.c = c;
+        this.tileCache = tileCache;
+        this.listener = listener;
+    }
+
+    /**
+     * Subscribes to the specified tiles instead of the previously subscribed ones. The new tiles
+     * are used from the next poll on. The poll in flight may skip over the events of the new tiles,
+     * so a tile is only kept fresh once it has been retrieved after the cursor of the poll that
+     * includes it was received, until then the regular map refreshes catch it up.
+     *
+     * @param tiles to subscribe to
+     */
+    public synchronized void subscribe(List<Tile> tiles) {
+        if (tiles.equals(this.tiles))
+            return;
+        this.tiles = new ArrayList<>(tiles);
+        notifyAll();
+    }
+
+    /**
+     * Starts polling on a new worker thread if not already started. The cursor is kept while
+     * stopped so that the events missed in the meantime are caught up on.
+     */
+    public synchronized void start() {
+        if (worker != null)
+            return;
+        worker = new Thread(this, "PostStream");
+        worker.start();
+    }
+
+    /**
+     * Stops polling. The poll in flight is abandoned and its response ignored.
+     */
+    public synchronized void stop() {
+        if (worker == null)
+            return;
+        worker.interrupt();
+        worker = null;
+        connected = false;
+        notifyAll();
+    }
+
+    /**
+     * Returns true if the last poll succeeded.
+     *
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Thread self = Thread.currentThread();
+        long delay = RETRY_DELAY;
+        while (true) {
+            List<Tile> subscribed;
+            int since;
+            synchronized (this) {
+                while (worker == self && tiles == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (worker != self)
+                    return;
+                subscribed = tiles;
+                since = cursor;
+            }
+
+            try {
+                List<PostEvent> events = poll(self, subscribed, since);
+                if (events == null)
+                    return; // stopped
+                connected = true;
+                delay = RETRY_DELAY;
+                if (!events.isEmpty()) {
+                    G.d("PostStream: " + events.size() + " events");
+                    listener.onEvents(events);
+                }
+            } catch (IOException e) {
+                G.e("PostStream disconnected, retrying in " + delay + "ms: " + e.getMessage());
+                connected = false;
+                synchronized (this) {
+                    if (worker != self)
+                        return;
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    private List<PostEvent> poll(Thread self, List<Tile> subscribed, int since)
+            throws IOException {
+        // returns null if the stream was stopped while polling
+        StringBuilder param = new StringBuilder();
+        for (Tile tile : subscribed) {
+            if (param.length() > 0)
+                param.append(',');
+            param.append(tile);
+        }
+        ResourceListRequest<PostEvent> request = new ResourceListRequest<>(c, PostEvent.PARSER,
+                Resource.POSTS, PostEvent.METHOD_EVENTS);
+        request.set(Post.PARAM_ZOOM, TileCache.ZOOM)
+                .set(Post.PARAM_TILES, param)
+                .set(PostEvent.PARAM_TIMEOUT, TIMEOUT);
+        if (since != NO_CURSOR)
+            request.set(PostEvent.PARAM_SINCE, since);
+        request.setReadTimeout((TIMEOUT + 15) * 1000); // the server may take the full timeout
+        ResourceResponse<PostEvent> response = request.send();
+
+        long now = System.currentTimeMillis(), upToDate;
+        List<PostEvent> events = response.getList();
+        synchronized (this) {
+            if (worker != self)
+                return null;
+            if (response.getStatusCode() == STATUS_GONE) {
+                // the events after the cursor are gone, the cached tiles may be missing some
+                G.d("PostStream: cursor expired");
+                cursor = NO_CURSOR;
+                tileCache.invalidate();
+                return new ArrayList<>();
+            } else if (response.isError())
+                throw new IOException("events request failed: " + response);
+
+            String header = response.getHeader(PostEvent.HEADER_CURSOR);
+            try {
+                cursor = Integer.parseInt(header);
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed event cursor: " + header);
+            }
+            // only tiles retrieved after the previous cursor was received have seen every event
+            upToDate = since == NO_CURSOR ? now : cursorTime;
+            cursorTime = now;
+        }
+
+        tileCache.apply(subscribed, events, upToDate, now);
+        return events;
+    }
+
+    /**
+     * Receives the events of the subscribed tiles.
+     */
+    public interface Listener {
+        /**
+         * Called on the worker thread with new events, after they have been applied to the
+         * {@link TileCache}.
+         *
+         * @param events in the order they happened
+         */
+        void onEvents(List<PostEvent> events);
+    }
+}
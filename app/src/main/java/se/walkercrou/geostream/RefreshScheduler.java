@@ -0,0 +1,141 @@
+package se.walkercrou.geostream;
+
+import android.os.Process;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.VisibleRegion;
+
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Runs map refreshes on a single worker thread so that at most one refresh is in flight at a
+ * time. Refreshes requested while another is running are coalesced into one that covers the most
+ * recent visible region. Unforced refreshes are skipped if the map has not moved meaningfully
+ * since the last refresh and an in-flight refresh is cancelled if the map moves away from the
+ * region it was requested for.
+ */
+public final class RefreshScheduler implements Runnable {
+    /**
+     * Fraction of the visible region's span that the map needs to move or zoom by before an
+     * unforced refresh is sent.
+     */
+    public static final double MOVE_THRESHOLD = 0.25;
+    /**
+     * Time (in millis) after which an unforced refresh is sent even if the map has not moved.
+     */
+    public static final long MAX_AGE = 30 * 1000;
+
+    private final Task task;
+    private final Thread worker;
+    private VisibleRegion pending, inFlight, last;
+    private long lastTime;
+    private boolean running = true;
+
+    public RefreshScheduler(Task task) {
+        this.task = task;
+        worker = new Thread(this, "RefreshScheduler");
+        worker.start();
+    }
+
+    /**
+     * Schedules a refresh of the specified region.
+     *
+     * @param region to refresh
+     * @param force  true if the refresh should be sent even if the map has not moved
+     * @return true if a refresh was scheduled, false if it was skipped
+     */
+    public synchronized boolean request(VisibleRegion region, boolean force) {
+        // compare to the region that will be shown once everything in progress is done
+        VisibleRegion current = pending != null ? pending : (inFlight != null ? inFlight : last);
+        boolean fresh = System.currentTimeMillis() - lastTime < MAX_AGE;
+        if (!force && current != null && fresh && !hasMoved(current, region)) {
+            G.d("Skipping map refresh, region has not moved.");
+            return false;
+        }
+
+        if (inFlight != null && hasMoved(inFlight, region)) {
+            G.d("Cancelling stale map refresh.");
+            worker.interrupt();
+        }
+        pending = region; // replaces any refresh that has not started yet
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Stops the worker thread, cancelling any refresh in flight.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        pending = null;
+        worker.interrupt();
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            VisibleRegion region;
+            synchronized (this) {
+                Thread.interrupted(); // clear a cancellation that arrived after the last refresh
+                while (running && pending == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (!running)
+                    return;
+                region = inFlight = pending;
+                pending = null;
+            }
+
+            boolean done = task.refresh(region);
+
+            synchronized (this) {
+                inFlight = null;
+                if (done) {
+                    last = region;
+                    lastTime = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private static boolean hasMoved(VisibleRegion from, VisibleRegion to) {
+        double latSpan = latSpan(from), lngSpan = lngSpan(from);
+        LatLng a = center(from), b = center(to);
+        return Math.abs(a.latitude - b.latitude) > latSpan * MOVE_THRESHOLD
+                || Math.abs(a.longitude - b.longitude) > lngSpan * MOVE_THRESHOLD
+                || Math.abs(latSpan - latSpan(to)) > latSpan * MOVE_THRESHOLD
+                || Math.abs(lngSpan - lngSpan(to)) > lngSpan * MOVE_THRESHOLD;
+    }
+
+    private static LatLng center(VisibleRegion region) {
+        return new LatLng((region.farLeft.latitude + region.nearRight.latitude) / 2,
+                (region.farLeft.longitude + region.nearRight.longitude) / 2);
+    }
+
+    private static double latSpan(VisibleRegion region) {
+        return Math.abs(region.farLeft.latitude - region.nearRight.latitude);
+    }
+
+    private static double lngSpan(VisibleRegion region) {
+        return Math.abs(region.farLeft.longitude - region.nearRight.longitude);
+    }
+
+    /**
+     * Refreshes the map, called on the worker thread.
+     */
+    public interface Task {
+        /**
+         * Refreshes the posts within the specified region. The worker thread is interrupted if
+         * the refresh has become stale.
+         *
+         * @param region to refresh
+         * @return true if the map now reflects the region, false if failed or cancelled
+         */
+        boolean refresh(VisibleRegion region);
+    }
+}
@@ -0,0 +1,229 @@
+package se.walkercrou.geostream;
+
+import android.content.Context;
+import android.location.Location;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.walkercrou.geostream.net.ErrorCallback;
+import se.walkercrou.geostream.post.PostEvent;
+import se.walkercrou.geostream.post.PostStore;
+import se.walkercrou.geostream.post.PostSummary;
+import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.RankedList;
+import se.walkercrou.geostream.util.Tile;
+
+/**
+ * Caches the posts retrieved from the server per map {@link Tile} so that a refresh only has to
+ * ask the server for the tiles that have come into view or have gone stale, rather than for the
+ * entire visible region. Everything retrieved is also kept in a {@link PostStore}, which outlives
+ * the cache and can be shown while tiles are being retrieved.
+ */
+public final class TileCache {
+    /**
+     * Zoom level of the cached tiles. The map never shows more than a handful of tiles at this
+     * level.
+     */
+    public static final int ZOOM = MapActivity.MIN_MAP_ZOOM;
+    /**
+     * Time (in millis) after which a tile is considered stale and is retrieved again.
+     */
+    public static final long TTL = 30 * 1000;
+    /**
+     * Maximum amount of tiles kept in the cache.
+     */
+    public static final int MAX_TILES = 256;
+    /**
+     * Maximum amount of posts retrieved per tile, the most recent ones are kept.
+     */
+    public static final int LIMIT = 40;
+
+    private final PostStore store;
+    // tile -> cached posts, in access order so the least recently used tile is dropped first
+    private final Map<Tile, Entry> entries = new LinkedHashMap<Tile, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Tile, Entry> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+
+    public TileCache(PostStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns summaries of the posts within all tiles that intersect the specified range,
+     * retrieving the tiles that are missing or stale from the server. At most {@link #LIMIT}
+     * posts are returned per tile, the rest are counted in the overflow count of the result.
+     *
+     * @param c        context
+     * @param fromLat  lower latitude
+     * @param toLat    upper latitude
+     * @param fromLng  lower longitude
+     * @param toLng    upper longitude
+     * @param callback in case of error
+     * @return posts within the tiles of the range, null if error
+     * @throws IOException if the server could not be reached
+     */
+    public RankedList<PostSummary> range(Context c, double fromLat, double toLat, double fromLng,
+                                         double toLng, ErrorCallback callback)
+            throws IOException {
+        List<Tile> tiles = Tile.covering(fromLat, toLat, fromLng, toLng, ZOOM);
+
+        // find tiles we need from the server
+        long now = System.currentTimeMillis();
+        Map<Tile, List<PostSummary>> missing = new HashMap<>();
+        synchronized (this) {
+            for (Tile tile : tiles) {
+                Entry entry = entries.get(tile);
+                if (entry == null || now - entry.time >= TTL)
+                    missing.put(tile, new ArrayList<>());
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<Tile, Integer> overflow = new HashMap<>();
+            List<PostSummary> posts = PostSummary.tiles(c, ZOOM,
+                    new ArrayList<>(missing.keySet()), LIMIT, overflow, callback);
+            if (posts == null)
+                return null;
+
+            // sort the posts into their tiles
+            for (PostSummary post : posts) {
+                Location loc = post.getLocation();
+                List<PostSummary> tilePosts = missing.get(Tile.of(loc.getLatitude(),
+                        loc.getLongitude(), ZOOM));
+                if (tilePosts != null)
+                    tilePosts.add(post);
+            }
+            store.replace(missing, now);
+            synchronized (this) {
+                for (Map.Entry<Tile, List<PostSummary>> e : missing.entrySet()) {
+                    Integer tileOverflow = overflow.get(e.getKey());
+                    entries.put(e.getKey(), new Entry(e.getValue(),
+                            tileOverflow == null ? 0 : tileOverflow, now));
+                }
+            }
+        }
+        G.d("TileCache: " + tiles.size() + " tiles, " + missing.size() + " retrieved");
+
+        // merge the tiles
+        List<PostSummary> result = new ArrayList<>();
+        int overflow = 0;
+        synchronized (this) {
+            for (Tile tile : tiles) {
+                Entry entry = entries.get(tile);
+                if (entry != null) {
+                    result.addAll(entry.posts);
+                    overflow += entry.overflow;
+                }
+            }
+        }
+        return new RankedList<>(result, overflow);
+    }
+
+    /**
+     * Returns the posts kept in the {@link PostStore} within all tiles that intersect the
+     * specified range, if any of the tiles would have to be retrieved from the server by
+     * {@link #range(Context, double, double, double, double, ErrorCallback)}. These posts can be
+     * shown right away, they were up to date when they were last retrieved.
+     *
+     * @param fromLat lower latitude
+     * @param toLat   upper latitude
+     * @param fromLng lower longitude
+     * @param toLng   upper longitude
+     * @return stored posts within the tiles of the range, or null if all the tiles are cached
+     */
+    public RankedList<PostSummary> stored(double fromLat, double toLat, double fromLng,
+                                          double toLng) {
+        List<Tile> tiles = Tile.covering(fromLat, toLat, fromLng, toLng, ZOOM);
+        long now = System.currentTimeMillis();
+        boolean cached = true;
+        synchronized (this) {
+            for (Tile tile : tiles) {
+                Entry entry = entries.get(tile);
+                if (entry == null || now - entry.time >= TTL)
+                    cached = false;
+            }
+        }
+        if (cached)
+            return null;
+
+        // the covering tiles are in a grid, from the north west tile to the south east tile
+        Tile nw = tiles.get(0), se = tiles.get(tiles.size() - 1);
+        List<PostSummary> posts = store.range(se.getSouth(), nw.getNorth(), nw.getWest(),
+                se.getEast(), now);
+        int limit = LIMIT * tiles.size();
+        if (posts.size() <= limit)
+            return new RankedList<>(posts, 0);
+        return new RankedList<>(posts.subList(0, limit), posts.size() - limit);
+    }
+
+    /**
+     * Applies the events pushed by a {@link PostStream} to the cached tiles. The specified tiles
+     * have not missed any events since the specified time, so those of them that were retrieved
+     * after it are as good as retrieved now and are kept fresh.
+     *
+     * @param tiles  that the events were pushed for
+     * @param events to apply, in the order they happened
+     * @param since  time after which the tiles have not missed any events
+     * @param now    time the events were received
+     */
+    public void apply(List<Tile> tiles, List<PostEvent> events, long since, long now) {
+        if (!events.isEmpty())
+            store.apply(events);
+        synchronized (this) {
+            applyToEntries(tiles, events, since, now);
+        }
+    }
+
+    private void applyToEntries(List<Tile> tiles, List<PostEvent> events, long since, long now) {
+        for (PostEvent event : events) {
+            PostSummary post = event.getPost();
+            Location loc = post.getLocation();
+            Entry entry = entries.get(Tile.of(loc.getLatitude(), loc.getLongitude(), ZOOM));
+            if (entry == null)
+                continue;
+
+            // drop any previous version of the post, then add it back if it was created
+            Iterator<PostSummary> iter = entry.posts.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().getId() == post.getId())
+                    iter.remove();
+            }
+            if (event.isCreated())
+                entry.posts.add(post);
+        }
+
+        for (Tile tile : tiles) {
+            Entry entry = entries.get(tile);
+            if (entry != null && entry.time >= since)
+                entry.time = now;
+        }
+    }
+
+    /**
+     * Drops all cached tiles so that the next refresh retrieves everything from the server.
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final List<PostSummary> posts;
+        private final int overflow; // amount of posts left out
+        private long time; // time retrieved, or last known to be up to date
+
+        private Entry(List<PostSummary> posts, int overflow, long time) {
+            this.posts = posts;
+            this.overflow = overflow;
+            this.time = time;
+        }
+    }
+}
@@ -2,7 +2,7 @@ package se.walkercrou.geostream.camera;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
+import android.content.Context;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
@@ -26,6 +26,7 @@ import java.io.IOException;
 
 import se.walkercrou.geostream.MapActivity;
 import se.walkercrou.geostream.R;
+import se.walkercrou.geostream.net.response.ResourceResponse;
 import se.walkercrou.geostream.post.Post;
 import se.walkercrou.geostream.post.PostDetailActivity;
 import se.walkercrou.geostream.util.E;
@@ -63,7 +64,6 @@ public class CameraActivity extends Activity implements PictureCallback, Shutter
     private ProgressBar recordingProgress;
     private int recordingProgressStatus = 0;
     private final Handler handler = new Handler(); // used for posting ui updates for progress bar
-    private ProgressDialog progressDialog;
     private View cancelBtn;
     private FloatingActionButton recordBtn, sendBtn;
     private View flashOnBtn, flashOffBtn;
@@ -228,8 +228,6 @@ public class CameraActivity extends Activity implements PictureCallback, Shutter
                 .setPositiveButton(R.string.action_ok, (dialog, which) -> {
                     // send the post
                     dialog.dismiss();
-                    progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
-                            getString(R.string.prompt_creating_post), true);
                     new Thread(() -> sendPost(np.getValue())).start();
                 })
                 .setNegativeButton(R.string.action_cancel, (dialog, which) -> dialog.dismiss())
@@ -257,22 +255,30 @@ public class CameraActivity extends Activity implements PictureCallback, Shutter
         else
             data = new MediaData(Post.fileName(false), imageData);
 
-        // try to create post
-        Post post;
+        // queue the post, it's uploaded in the background so we can go straight back to the map
+        Context app = getApplicationContext();
         try {
-            post = Post.create(this, locationApi.getLastLocation(), lifetime, data,
-                    (error) -> E.postSend(this).show());
+            Post.create(app, locationApi.getLastLocation(), lifetime, data,
+                    response -> onPostCreated(app, response));
         } catch (IOException e) {
-            E.postSend(this).show();
             e.printStackTrace();
+            handler.post(() -> E.postSend(this).show());
             return;
         }
 
-        if (post != null)
-            post.startActivity(this);
+        handler.post(() -> {
+            Toast.makeText(this, R.string.prompt_post_queued, Toast.LENGTH_LONG).show();
+            finish();
+        });
+    }
 
-        if (progressDialog != null)
-            progressDialog.dismiss();
+    private static void onPostCreated(Context c, ResourceResponse<Post> response) {
+        // the activity is most likely gone by now
+        if (response != null && !response.isError()) {
+            G.i("Post #" + response.get().getId() + " created.");
+            Toast.makeText(c, R.string.prompt_post_created, Toast.LENGTH_LONG).show();
+        } else
+            Toast.makeText(c, R.string.error_send_post, Toast.LENGTH_LONG).show();
     }
 
     private void showPreviewButtons() {
@@ -0,0 +1,175 @@
+package se.walkercrou.geostream.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Counts the connections made to the server and the sockets that were opened for them. A response
+ * can only give it's socket back to the connection pool once it's body has been fully read, so
+ * the ratio of released responses and reused sockets shows how well connections are being reused.
+ * Sockets can only be counted for HTTPS connections.
+ */
+public final class ConnectionStats {
+    private static final AtomicInteger requests = new AtomicInteger();
+    private static final AtomicInteger secureRequests = new AtomicInteger();
+    private static final AtomicInteger socketsOpened = new AtomicInteger();
+    private static final AtomicInteger released = new AtomicInteger();
+    private static final AtomicInteger abandoned = new AtomicInteger();
+    // a single instance so the connection pool sees the same factory for every connection
+    private static SSLSocketFactory socketFactory;
+
+    private ConnectionStats() {
+    }
+
+    /**
+     * Called when a connection to the server is opened.
+     *
+     * @param conn that was opened
+     */
+    public static void onOpen(HttpURLConnection conn) {
+        requests.incrementAndGet();
+        if (conn instanceof HttpsURLConnection) {
+            secureRequests.incrementAndGet();
+            ((HttpsURLConnection) conn).setSSLSocketFactory(getSocketFactory());
+        }
+    }
+
+    /**
+     * Called when the body of a response has been closed.
+     *
+     * @param drained true if the body was read to the end so the socket can be reused
+     */
+    public static void onRelease(boolean drained) {
+        if (drained)
+            released.incrementAndGet();
+        else
+            abandoned.incrementAndGet();
+    }
+
+    /**
+     * Returns the amount of connections opened to the server.
+     *
+     * @return amount of requests
+     */
+    public static int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the amount of sockets opened for HTTPS connections.
+     *
+     * @return sockets opened
+     */
+    public static int getSocketsOpened() {
+        return socketsOpened.get();
+    }
+
+    /**
+     * Returns the amount of response bodies that were read to the end and closed.
+     *
+     * @return released responses
+     */
+    public static int getReleased() {
+        return released.get();
+    }
+
+    /**
+     * Returns the amount of response bodies that were closed before they were read to the end,
+     * forcing their socket to be closed.
+     *
+     * @return abandoned responses
+     */
+    public static int getAbandoned() {
+        return abandoned.get();
+    }
+
+    /**
+     * Returns the fraction of HTTPS requests that were sent over an existing socket.
+     *
+     * @return socket reuse ratio between 0 and 1, 0 if there have been no HTTPS requests
+     */
+    public static float getReuseRatio() {
+        int secure = secureRequests.get();
+        if (secure == 0)
+            return 0;
+        return Math.max(0, secure - socketsOpened.get()) / (float) secure;
+    }
+
+    /**
+     * Returns a summary of the statistics for logging.
+     *
+     * @return summary
+     */
+    public static String summary() {
+        return "ConnectionStats{requests=" + requests + ", secureRequests=" + secureRequests
+                + ", socketsOpened=" + socketsOpened + ", reuseRatio=" + getReuseRatio()
+                + ", released=" + released + ", abandoned=" + abandoned + '}';
+    }
+
+    private static synchronized SSLSocketFactory getSocketFactory() {
+        if (socketFactory == null)
+            socketFactory = new CountingSocketFactory(
+                    HttpsURLConnection.getDefaultSSLSocketFactory());
+        return socketFactory;
+    }
+
+    /**
+     * Delegates to the default factory, counting the sockets created.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        private CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            socketsOpened.incrementAndGet();
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            socketsOpened.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            socketsOpened.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            socketsOpened.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            socketsOpened.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
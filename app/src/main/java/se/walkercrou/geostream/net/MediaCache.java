@@ -0,0 +1,417 @@
+package se.walkercrou.geostream.net;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.walkercrou.geostream.util.BitmapDecoder;
+import se.walkercrou.geostream.util.DecodedImage;
+import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.ImageStore;
+
+/**
+ * Two-tier cache for media downloaded from the server. Decoded images are kept in a memory LRU
+ * that is bounded by byte count, and the raw bytes of images and videos are kept in a disk LRU
+ * that is bounded by total file size. Entries are keyed by the media URL and are dropped from both
+ * tiers once the post they belong to has expired.
+ */
+public final class MediaCache {
+    /**
+     * Name of the directory within the cache dir where media files are stored.
+     */
+    public static final String DIR_NAME = "media";
+    /**
+     * Maximum total size (in bytes) of the media files kept on disk. A single file that is larger
+     * is kept until the next one is written.
+     */
+    public static final long MAX_DISK_SIZE = 64 * 1024 * 1024;
+    /**
+     * Fraction of the VM's maximum memory that may be used by decoded bitmaps.
+     */
+    public static final int MEMORY_FRACTION = 8;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static MediaCache instance;
+
+    private final File dir;
+    private final LruCache<String, DecodedImage> memory; // url hash -> decoded image
+    // url hash -> file, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<String, File> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> expirations = new HashMap<>(); // url hash -> expiration
+    private long diskSize;
+
+    // statistics
+    private final AtomicInteger memoryHits = new AtomicInteger();
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    private MediaCache(Context c) {
+        File root = c.getExternalCacheDir();
+        if (root == null)
+            root = c.getCacheDir();
+        dir = new File(root, DIR_NAME);
+        if (!dir.exists() && !dir.mkdirs())
+            G.e("could not create media cache directory: " + dir);
+
+        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        memory = new LruCache<String, DecodedImage>(maxMemory) {
+            @Override
+            protected int sizeOf(String key, DecodedImage value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, DecodedImage oldValue,
+                                        DecodedImage newValue) {
+                // let the decoder reuse the least recently used image unless it is on screen
+                if (evicted && ImageStore.discard(oldValue.getBitmap()))
+                    BitmapDecoder.offerReusable(oldValue.getBitmap());
+            }
+        };
+
+        load();
+    }
+
+    /**
+     * Returns the process wide media cache, creating it if needed.
+     *
+     * @param c context
+     * @return media cache
+     */
+    public static synchronized MediaCache get(Context c) {
+        if (instance == null)
+            instance = new MediaCache(c.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Returns the decoded image for the specified URL if it is held in memory.
+     *
+     * @param url of media
+     * @return image or null if not in memory
+     */
+    public DecodedImage getImage(String url) {
+        if (isExpired(url)) {
+            remove(url);
+            return null;
+        }
+        DecodedImage image = memory.get(hash(url));
+        if (image != null)
+            memoryHits.incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Keeps the specified decoded image in memory.
+     *
+     * @param url   of media
+     * @param image decoded image
+     */
+    public void putImage(String url, DecodedImage image) {
+        if (image != null)
+            memory.put(hash(url), image);
+    }
+
+    /**
+     * Returns the file that holds the raw bytes for the specified URL if it is on disk.
+     *
+     * @param url of media
+     * @return file or null if not cached
+     */
+    public synchronized File getFile(String url) {
+        if (isExpired(url)) {
+            remove(url);
+            misses.incrementAndGet();
+            return null;
+        }
+        String key = hash(url);
+        File file = disk.get(key);
+        if (file == null || !file.exists()) {
+            if (file != null)
+                removeFile(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis()); // keep LRU order across restarts
+        diskHits.incrementAndGet();
+        bytesSaved.addAndGet(file.length());
+        return file;
+    }
+
+    /**
+     * Writes the specified stream to disk as the media for the specified URL.
+     *
+     * @param url       of media
+     * @param in        to read from, not closed
+     * @param expiresAt time in millis after which the entry is no longer valid
+     * @return file containing the media
+     * @throws IOException if the stream could not be read or the file could not be written
+     */
+    public File put(String url, InputStream in, long expiresAt) throws IOException {
+        return put(url, in, expiresAt, null);
+    }
+
+    /**
+     * Writes the specified stream to disk as the media for the specified URL and reports the
+     * progress to the specified download so that the media can be read while being written.
+     *
+     * @param url       of media
+     * @param in        to read from, not closed
+     * @param expiresAt time in millis after which the entry is no longer valid
+     * @param download  to report progress to, may be null
+     * @return file containing the media
+     * @throws IOException if the stream could not be read or the file could not be written
+     */
+    public File put(String url, InputStream in, long expiresAt, ProgressiveDownload download)
+            throws IOException {
+        try {
+            File file = write(url, in, expiresAt, download);
+            if (download != null)
+                download.onComplete(file);
+            return file;
+        } catch (IOException e) {
+            if (download != null)
+                download.onError(e);
+            throw e;
+        }
+    }
+
+    private File write(String url, InputStream in, long expiresAt, ProgressiveDownload download)
+            throws IOException {
+        File file = new File(dir, fileName(url, expiresAt));
+        File temp = new File(dir, file.getName() + '.' + Thread.currentThread().getId()
+                + TEMP_SUFFIX);
+
+        // write to a temporary file first so a partial download is never served from the cache
+        FileOutputStream out = new FileOutputStream(temp);
+        if (download != null)
+            download.onStart(temp);
+        long length = 0;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                length += n;
+                if (download != null) {
+                    out.flush();
+                    download.onWrite(length);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        bytesDownloaded.addAndGet(length);
+
+        synchronized (this) {
+            String key = hash(url);
+            removeFile(key);
+            // readers of the download keep their open handle to the temp file across the rename
+            boolean moved = download != null ? download.moveTo(file) : temp.renameTo(file);
+            if (!moved) {
+                temp.delete();
+                throw new IOException("could not move media into cache: " + file);
+            }
+            add(key, file, expiresAt);
+            trim();
+        }
+        return file;
+    }
+
+    /**
+     * Removes the media for the specified URL from both tiers.
+     *
+     * @param url of media
+     */
+    public synchronized void remove(String url) {
+        String key = hash(url);
+        memory.remove(key);
+        removeFile(key);
+    }
+
+    /**
+     * Removes all entries that belong to expired posts.
+     */
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> iter = expirations.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getValue() <= now) {
+                String key = entry.getKey();
+                iter.remove();
+                memory.remove(key);
+                File file = disk.remove(key);
+                if (file != null) {
+                    diskSize -= file.length();
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of lookups that were served by a decoded image in memory.
+     *
+     * @return memory hits
+     */
+    public int getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Returns the amount of lookups that were served by a file on disk.
+     *
+     * @return disk hits
+     */
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the amount of lookups that required a download.
+     *
+     * @return misses
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the amount of bytes served from disk that would otherwise have been downloaded.
+     * Memory hits are not counted.
+     *
+     * @return bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Returns the amount of bytes that have been downloaded into the cache.
+     *
+     * @return bytes downloaded
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MediaCache{memoryHits=" + memoryHits + ", diskHits=" + diskHits + ", misses="
+                + misses + ", bytesSaved=" + bytesSaved + ", bytesDownloaded=" + bytesDownloaded
+                + ", diskSize=" + diskSize + ", memorySize=" + memory.size() + '}';
+    }
+
+    private boolean isExpired(String url) {
+        String key = hash(url);
+        Long expiresAt;
+        synchronized (this) {
+            expiresAt = expirations.get(key);
+        }
+        return expiresAt != null && expiresAt <= System.currentTimeMillis();
+    }
+
+    private void load() {
+        // rebuild the index from the files left over by a previous run, oldest first
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, (a, b) -> {
+            long x = a.lastModified(), y = b.lastModified();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            long expiresAt = parseExpiration(name);
+            if (name.endsWith(TEMP_SUFFIX) || expiresAt <= System.currentTimeMillis())
+                file.delete();
+            else
+                add(hashOf(name), file, expiresAt);
+        }
+        trim();
+    }
+
+    private void add(String key, File file, long expiresAt) {
+        disk.put(key, file);
+        expirations.put(key, expiresAt);
+        diskSize += file.length();
+    }
+
+    private void removeFile(String key) {
+        expirations.remove(key);
+        File file = disk.remove(key);
+        if (file != null) {
+            diskSize -= file.length();
+            file.delete();
+        }
+    }
+
+    private void trim() {
+        // remove least recently used files until we are within bounds, but never the most recently
+        // used one, which has just been written and is about to be returned even if it is larger
+        // than the bound on its own
+        while (diskSize > MAX_DISK_SIZE && disk.size() > 1)
+            removeFile(disk.keySet().iterator().next());
+    }
+
+    private static String fileName(String url, long expiresAt) {
+        // e.g. "<sha1 of url>_<expiration millis>.mp4"
+        String ext = "bin";
+        int dot = url.lastIndexOf('.');
+        if (dot != -1) {
+            String urlExt = url.substring(dot + 1).replace("/", "");
+            if (!urlExt.isEmpty() && urlExt.length() <= 4 && urlExt.matches("[A-Za-z0-9]+"))
+                ext = urlExt;
+        }
+        return hash(url) + '_' + expiresAt + '.' + ext;
+    }
+
+    private static String hashOf(String fileName) {
+        int sep = fileName.indexOf('_');
+        return sep == -1 ? fileName : fileName.substring(0, sep);
+    }
+
+    private static long parseExpiration(String fileName) {
+        int sep = fileName.indexOf('_');
+        int dot = fileName.indexOf('.', sep);
+        if (sep == -1 || dot == -1)
+            return 0;
+        try {
+            return Long.parseLong(fileName.substring(sep + 1, dot));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package se.walkercrou.geostream.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tracks a download that is being written to the {@link MediaCache} so that it can be read while
+ * it is still in progress. Readers block until the bytes they want have been written.
+ */
+public final class ProgressiveDownload {
+    private long length = -1; // total length, -1 if unknown
+    private File file; // file being written to, then the file in the cache once complete
+    private long written;
+    private boolean complete;
+    private IOException error;
+
+    /**
+     * Sets the total length of the download as reported by the server.
+     *
+     * @param length total length, -1 if unknown
+     */
+    public synchronized void setLength(long length) {
+        this.length = length;
+        notifyAll();
+    }
+
+    /**
+     * Returns the total length of the download, waiting until the download has started.
+     *
+     * @return total length, -1 if unknown
+     * @throws IOException if the download failed or the thread was interrupted
+     */
+    public synchronized long awaitLength() throws IOException {
+        while (file == null && !complete)
+            await();
+        return complete ? written : length;
+    }
+
+    /**
+     * Opens the file that currently holds the downloaded bytes for reading, waiting until the
+     * download has started. The handle stays valid once the download is moved into the cache.
+     *
+     * @return file holding download, to be closed by the caller
+     * @throws IOException if the download failed, the file could not be opened or the thread was
+     *                     interrupted
+     */
+    public synchronized RandomAccessFile open() throws IOException {
+        while (file == null)
+            await();
+        return new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Waits until more bytes than the specified position have been written or the download is
+     * complete.
+     *
+     * @param position to wait for
+     * @return amount of bytes written so far
+     * @throws IOException if the download failed or the thread was interrupted
+     */
+    public synchronized long awaitAvailable(long position) throws IOException {
+        while (written <= position && !complete)
+            await();
+        return written;
+    }
+
+    /**
+     * Returns true if the download has been completely written to the cache.
+     *
+     * @return true if complete
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized void onStart(File file) {
+        this.file = file;
+        notifyAll();
+    }
+
+    synchronized void onWrite(long written) {
+        this.written = written;
+        notifyAll();
+    }
+
+    synchronized boolean moveTo(File to) {
+        // moved while holding the lock so that open() never sees a file that is gone
+        if (!file.renameTo(to))
+            return false;
+        file = to;
+        return true;
+    }
+
+    synchronized void onComplete(File file) {
+        this.file = file;
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the download as failed, waking up any readers.
+     *
+     * @param error that caused the failure
+     */
+    public synchronized void onError(IOException error) {
+        this.error = error;
+        notifyAll();
+    }
+
+    private void await() throws IOException {
+        if (error != null)
+            throw error;
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (error != null)
+            throw error;
+    }
+}
@@ -1,10 +1,13 @@
 package se.walkercrou.geostream.net;
 
+import android.util.JsonToken;
+
+import java.io.IOException;
 import java.util.Date;
 
 /**
- * Represents a Resource on the server. The implementing class must implement a
- * "static T parse(JSONObject)" method.
+ * Represents a Resource on the server. The implementing class must provide a
+ * "static final ResourceParser&lt;T&gt; PARSER" field.
  */
 public abstract class Resource {
     /**
@@ -31,9 +34,9 @@ public abstract class Resource {
 
     protected final int id;
     protected final String typeName;
-    protected final Date created;
+    protected final long created; // millis since the epoch
 
-    protected Resource(int id, String typeName, Date created) {
+    protected Resource(int id, String typeName, long created) {
         this.id = id;
         this.typeName = typeName;
         this.created = created;
@@ -63,6 +66,30 @@ public abstract class Resource {
      * @return date of creation
      */
     public Date getCreationDate() {
+        return new Date(created);
+    }
+
+    /**
+     * Returns the time at which this resource was created.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getCreationTime() {
         return created;
     }
+
+    /**
+     * Reads the next string value from the specified reader or consumes a null value.
+     *
+     * @param in reader positioned at a value
+     * @return string value, null if null
+     * @throws IOException if the next value is not a string or null
+     */
+    protected static String nextStringOrNull(ResourceReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
 }
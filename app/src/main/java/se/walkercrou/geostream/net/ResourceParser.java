@@ -0,0 +1,26 @@
+package se.walkercrou.geostream.net;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Functional interface for reading a {@link Resource} from a server response. Each resource
+ * exposes it's parser as a static "PARSER" field.
+ *
+ * @param <T> type of resource
+ */
+public interface ResourceParser<T extends Resource> {
+    /**
+     * Reads the next resource from the specified {@link ResourceReader}, which must be positioned
+     * at the beginning of the resource's object.
+     *
+     * @param c  context
+     * @param in to read from
+     * @return new resource
+     * @throws IOException    if the response could not be read
+     * @throws ParseException if a date is malformed
+     */
+    T parse(Context c, ResourceReader in) throws IOException, ParseException;
+}
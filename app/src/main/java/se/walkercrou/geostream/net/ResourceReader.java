@@ -0,0 +1,131 @@
+package se.walkercrou.geostream.net;
+
+import android.util.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Reads the values of a server response one token at a time, independent of the encoding the
+ * server chose. The methods behave like those of {@link android.util.JsonReader}.
+ *
+ * @see se.walkercrou.geostream.net.response.JsonResourceReader
+ * @see se.walkercrou.geostream.net.response.BinaryResourceReader
+ */
+public interface ResourceReader extends Closeable {
+    /**
+     * Returns the type of the next token without consuming it.
+     *
+     * @return type of next token
+     * @throws IOException if the response could not be read
+     */
+    JsonToken peek() throws IOException;
+
+    /**
+     * Consumes the beginning of an object.
+     *
+     * @throws IOException if the next token is not the beginning of an object
+     */
+    void beginObject() throws IOException;
+
+    /**
+     * Consumes the end of an object.
+     *
+     * @throws IOException if the next token is not the end of an object
+     */
+    void endObject() throws IOException;
+
+    /**
+     * Consumes the beginning of an array.
+     *
+     * @throws IOException if the next token is not the beginning of an array
+     */
+    void beginArray() throws IOException;
+
+    /**
+     * Consumes the end of an array.
+     *
+     * @throws IOException if the next token is not the end of an array
+     */
+    void endArray() throws IOException;
+
+    /**
+     * Returns true if the current object or array has another element.
+     *
+     * @return true if there is another element
+     * @throws IOException if the response could not be read
+     */
+    boolean hasNext() throws IOException;
+
+    /**
+     * Consumes the next property name of the current object.
+     *
+     * @return property name
+     * @throws IOException if the next token is not a property name
+     */
+    String nextName() throws IOException;
+
+    /**
+     * Consumes the next string value, numbers are returned in their string form.
+     *
+     * @return string value
+     * @throws IOException if the next token is not a string or number
+     */
+    String nextString() throws IOException;
+
+    /**
+     * Consumes the next boolean value.
+     *
+     * @return boolean value
+     * @throws IOException if the next token is not a boolean
+     */
+    boolean nextBoolean() throws IOException;
+
+    /**
+     * Consumes the next integer value.
+     *
+     * @return integer value
+     * @throws IOException if the next token is not a number that fits an int
+     */
+    int nextInt() throws IOException;
+
+    /**
+     * Consumes the next long value.
+     *
+     * @return long value
+     * @throws IOException if the next token is not a number that fits a long
+     */
+    long nextLong() throws IOException;
+
+    /**
+     * Consumes the next double value.
+     *
+     * @return double value
+     * @throws IOException if the next token is not a number
+     */
+    double nextDouble() throws IOException;
+
+    /**
+     * Consumes the next date value, in whatever form the encoding gives dates.
+     *
+     * @return milliseconds since the epoch
+     * @throws IOException    if the next token is not a date
+     * @throws ParseException if the date is malformed
+     */
+    long nextTimestamp() throws IOException, ParseException;
+
+    /**
+     * Consumes the next null value.
+     *
+     * @throws IOException if the next token is not null
+     */
+    void nextNull() throws IOException;
+
+    /**
+     * Consumes the next value, including all nested values of an object or array.
+     *
+     * @throws IOException if the response could not be read
+     */
+    void skipValue() throws IOException;
+}
@@ -0,0 +1,19 @@
+package se.walkercrou.geostream.net;
+
+import se.walkercrou.geostream.net.response.Response;
+
+/**
+ * Functional interface for receiving the result of a request that was sent asynchronously.
+ *
+ * @param <T> type of response
+ */
+public interface ResponseCallback<T extends Response> {
+    /**
+     * Called on the main thread when the request has completed. A null response signifies that a
+     * connection could not be made to the server and can be passed straight to
+     * {@link Response#check(Response, ErrorCallback)}.
+     *
+     * @param response from server, null if none
+     */
+    void onResponse(T response);
+}
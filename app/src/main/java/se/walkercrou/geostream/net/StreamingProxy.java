@@ -0,0 +1,268 @@
+package se.walkercrou.geostream.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Local HTTP server on the loopback interface that serves {@link ProgressiveDownload}s while they
+ * are still being written to the {@link MediaCache}. This lets a {@link android.media.MediaPlayer}
+ * start playing a video as soon as the first bytes arrive instead of waiting for the entire file.
+ * Byte range requests are supported so that the player can seek within the download, reads past
+ * what has been downloaded so far block until the bytes arrive. Connections are served by a small
+ * bounded pool, and the proxy shuts down once the last of its downloads has been released.
+ */
+public final class StreamingProxy implements Runnable {
+    /**
+     * Maximum amount of downloads that are kept registered with the proxy.
+     */
+    public static final int MAX_DOWNLOADS = 8;
+
+    /**
+     * Maximum amount of connections that are served at once, a player opens one or two per video.
+     */
+    public static final int MAX_CONNECTIONS = 4;
+
+    private static final int MAX_QUEUED = 8;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String RANGE_PREFIX = "bytes=";
+    private static StreamingProxy instance;
+
+    private final ServerSocket server;
+    private final String baseUrl;
+    private final ThreadPoolExecutor executor;
+    private final Set<Socket> clients = new HashSet<>();
+    // id -> download, in insertion order so the oldest is dropped first
+    private final Map<String, ProgressiveDownload> downloads
+            = new LinkedHashMap<String, ProgressiveDownload>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProgressiveDownload> eldest) {
+            return size() > MAX_DOWNLOADS;
+        }
+    };
+
+    private StreamingProxy() throws IOException {
+        server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        baseUrl = "http://127.0.0.1:" + server.getLocalPort() + '/';
+        executor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED), r -> {
+            Thread thread = new Thread(r, "StreamingProxy client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        Thread thread = new Thread(this, "StreamingProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops serving the download at the specified URL, to be called once the player reading it
+     * has been released. The proxy is shut down when it has no downloads left and started again
+     * by the next {@link #register(ProgressiveDownload)}. URLs that were not returned by the proxy
+     * are ignored.
+     *
+     * @param url returned by {@link #register(ProgressiveDownload)}
+     */
+    public static synchronized void release(String url) {
+        if (instance == null || !url.startsWith(instance.baseUrl))
+            return;
+        boolean empty;
+        synchronized (instance.downloads) {
+            instance.downloads.remove(url.substring(instance.baseUrl.length()));
+            empty = instance.downloads.isEmpty();
+        }
+        if (empty) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Makes the specified download available through the process wide proxy, starting it if
+     * needed.
+     *
+     * @param download to serve
+     * @return local URL the download can be read from
+     * @throws IOException if the server socket could not be opened
+     */
+    public static synchronized String register(ProgressiveDownload download) throws IOException {
+        if (instance == null)
+            instance = new StreamingProxy();
+        String id = UUID.randomUUID().toString();
+        synchronized (instance.downloads) {
+            instance.downloads.put(id, download);
+        }
+        return instance.baseUrl + id;
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {
+                break; // closed
+            } catch (IOException e) {
+                G.e("StreamingProxy could not accept connection", e);
+                continue;
+            }
+            try {
+                executor.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                G.d("StreamingProxy rejected connection, too many open");
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // wakes up connections that are waiting for the download and fails those writing
+        executor.shutdownNow();
+        synchronized (clients) {
+            for (Socket socket : clients)
+                closeQuietly(socket);
+            clients.clear();
+        }
+    }
+
+    private void serve(Socket socket) {
+        synchronized (clients) {
+            if (executor.isShutdown()) {
+                closeQuietly(socket);
+                return;
+            }
+            clients.add(socket);
+        }
+        try {
+            // read request line and headers, we don't care about the body
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    "US-ASCII"));
+            String requestLine = in.readLine();
+            if (requestLine == null)
+                return;
+            long start = 0;
+            boolean range = false;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int sep = line.indexOf(':');
+                if (sep != -1 && line.substring(0, sep).trim().equalsIgnoreCase("Range")) {
+                    String value = line.substring(sep + 1).trim();
+                    if (value.startsWith(RANGE_PREFIX)) {
+                        int dash = value.indexOf('-');
+                        try {
+                            start = Long.parseLong(value.substring(RANGE_PREFIX.length(), dash));
+                            range = true;
+                        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                            start = 0;
+                        }
+                    }
+                }
+            }
+
+            // e.g. "GET /<id> HTTP/1.1"
+            String[] parts = requestLine.split(" ");
+            ProgressiveDownload download = null;
+            if (parts.length >= 2 && parts[1].startsWith("/")) {
+                synchronized (downloads) {
+                    download = downloads.get(parts[1].substring(1));
+                }
+            }
+
+            OutputStream out = socket.getOutputStream();
+            if (download == null) {
+                writeHeaders(out, "404 Not Found", "Content-Length: 0\r\n");
+                return;
+            }
+            G.d("StreamingProxy: " + requestLine + (range ? " from " + start : ""));
+            stream(download, start, range, out);
+        } catch (IOException e) {
+            // the player closes connections when it seeks or is released
+            G.d("StreamingProxy connection closed: " + e.getMessage());
+        } finally {
+            synchronized (clients) {
+                clients.remove(socket);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    private void stream(ProgressiveDownload download, long start, boolean range, OutputStream out)
+            throws IOException {
+        long length = download.awaitLength();
+        if (length > 0 && start >= length) {
+            writeHeaders(out, "416 Range Not Satisfiable", "Content-Range: bytes */" + length
+                    + "\r\nContent-Length: 0\r\n");
+            return;
+        }
+
+        String headers = "Accept-Ranges: bytes\r\n";
+        if (length >= 0)
+            headers += "Content-Length: " + (length - start) + "\r\n";
+        if (range && length >= 0) {
+            headers += "Content-Range: bytes " + start + '-' + (length - 1) + '/' + length
+                    + "\r\n";
+        }
+        writeHeaders(out, range ? "206 Partial Content" : "200 OK", headers);
+
+        RandomAccessFile file = download.open();
+        try {
+            file.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (length < 0 || position < length) {
+                long available = download.awaitAvailable(position);
+                if (available <= position)
+                    break; // complete
+                int n = file.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+                if (n == -1)
+                    break;
+                out.write(buffer, 0, n);
+                position += n;
+            }
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, String status, String headers)
+            throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\nContent-Type: video/mp4\r\n" + headers
+                + "Connection: close\r\n\r\n";
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+    }
+}
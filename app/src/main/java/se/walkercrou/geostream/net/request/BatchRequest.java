@@ -0,0 +1,313 @@
+package se.walkercrou.geostream.net.request;
+
+import android.content.Context;
+import android.util.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.response.BatchResponse;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Represents a request that applies an ordered list of create and delete operations on the server
+ * in one round trip. Operations that are submitted through {@link #create(Context, ResourceParser,
+ * String, Map, String, ResponseCallback)} and {@link #delete(Context, ResourceParser, String, int,
+ * String, ResponseCallback)} are collected for a short window and then sent together.
+ */
+public class BatchRequest extends Request<BatchResponse> {
+    /**
+     * Route of the batch endpoint.
+     */
+    public static final String ROUTE = RESOURCE_ROOT + "batch/";
+    /**
+     * The time (in millis) that operations are collected for before they are sent.
+     */
+    public static final long WINDOW = 200;
+    /**
+     * The most operations that are sent in one batch, must not exceed the server's limit.
+     */
+    public static final int MAX_OPERATIONS = 50;
+
+    private static final String METHOD_CREATE = "create";
+    private static final String METHOD_DELETE = "delete";
+    private static final String FIELD_METHOD = "method";
+    private static final String FIELD_RESOURCE = "resource";
+    private static final String FIELD_DATA = "data";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_CLIENT_SECRET = "client_secret";
+    private static final String FIELD_IDEMPOTENCY_KEY = "idempotency_key";
+    private static final String CHARSET = "UTF-8";
+
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+            new RequestDispatcher.QueueThreadFactory(BatchRequest.class.getSimpleName()));
+    private static BatchRequest pending; // the batch that is still collecting operations
+
+    private final Context c;
+    private final List<Operation<?>> operations = new ArrayList<>();
+
+    private BatchRequest(Context c) {
+        super(ROUTE);
+        this.c = c;
+    }
+
+    /**
+     * Adds an operation that creates a resource to the pending batch.
+     *
+     * @param c              context
+     * @param parser         to parse the created resource with
+     * @param resourceName   name of resource to create
+     * @param params         parameters of resource
+     * @param idempotencyKey see {@link ResourceCreateRequest#setIdempotencyKey(String)}, may be
+     *                       null
+     * @param callback       notified on the batch thread when done, with a null response if the
+     *                       batch could not be sent, may be null
+     * @param <T>            type of resource
+     * @return pending operation
+     */
+    public static <T extends Resource> Operation<T> create(Context c, ResourceParser<T> parser,
+                                                          String resourceName,
+                                                          Map<String, Object> params,
+                                                          String idempotencyKey,
+                                                          ResponseCallback<ResourceResponse<T>>
+                                                                  callback) {
+        return submit(c, new Operation<>(parser, METHOD_CREATE, resourceName, params,
+                idempotencyKey, 0, null, callback));
+    }
+
+    /**
+     * Adds an operation that deletes a resource to the pending batch.
+     *
+     * @param c            context
+     * @param parser       to parse the response with
+     * @param resourceName name of resource to delete
+     * @param id           of resource
+     * @param clientSecret received when the resource was created
+     * @param callback     notified on the batch thread when done, with a null response if the
+     *                     batch could not be sent, may be null
+     * @param <T>          type of resource
+     * @return pending operation
+     */
+    public static <T extends Resource> Operation<T> delete(Context c, ResourceParser<T> parser,
+                                                          String resourceName, int id,
+                                                          String clientSecret,
+                                                          ResponseCallback<ResourceResponse<T>>
+                                                                  callback) {
+        return submit(c, new Operation<>(parser, METHOD_DELETE, resourceName, null, null, id,
+                clientSecret, callback));
+    }
+
+    private static synchronized <T extends Resource> Operation<T> submit(Context c,
+                                                                        Operation<T> operation) {
+        if (pending == null) {
+            // start a new window
+            BatchRequest batch = pending = new BatchRequest(c.getApplicationContext());
+            executor.schedule(() -> close(batch), WINDOW, TimeUnit.MILLISECONDS);
+        }
+
+        pending.operations.add(operation);
+        if (pending.operations.size() >= MAX_OPERATIONS) {
+            // full, don't wait for the window to end
+            BatchRequest batch = pending;
+            pending = null;
+            executor.execute(batch::flush);
+        }
+        return operation;
+    }
+
+    private static void close(BatchRequest batch) {
+        synchronized (BatchRequest.class) {
+            if (pending != batch)
+                return; // already sent because it was full
+            pending = null;
+        }
+        batch.flush();
+    }
+
+    @Override
+    public BatchResponse send() throws IOException {
+        byte[] body = writeBody();
+
+        // obtain server connection
+        HttpURLConnection conn = getConnection();
+        conn.setUseCaches(false);
+        conn.setDoOutput(true);
+
+        // configure connection
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Cache-Control", "no-cache");
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        conn.setFixedLengthStreamingMode(body.length);
+
+        // write request
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        List<ResourceParser<?>> parsers = new ArrayList<>();
+        for (Operation<?> operation : operations)
+            parsers.add(operation.parser);
+        return new BatchResponse(c, parsers, conn);
+    }
+
+    private void flush() {
+        // called on the batch thread, sends the batch and completes its operations
+        G.d("Sending batch of " + operations.size() + " operations");
+        BatchResponse response;
+        try {
+            response = send();
+            G.d(response);
+        } catch (IOException | RuntimeException e) {
+            G.e("Batch request failed", e);
+            for (Operation<?> operation : operations)
+                operation.fail(e);
+            return;
+        }
+
+        List<ResourceResponse<?>> results = response.get();
+        for (int i = 0; i < operations.size(); i++) {
+            if (i < results.size())
+                operations.get(i).complete(results.get(i));
+            else {
+                // the batch as a whole failed, every operation gets its status
+                operations.get(i).complete(new ResourceResponse<>(
+                        Collections.<Resource>emptyList(), response.getStatusCode(), null,
+                        response.getErrorDetail()));
+            }
+        }
+    }
+
+    private byte[] writeBody() throws IOException {
+        // e.g. [{"method":"create","resource":"comments","data":{"post":1,"content":"Hello"},
+        //        "idempotency_key":"..."},
+        //       {"method":"delete","resource":"comments","id":2,"client_secret":"..."}]
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, CHARSET));
+        writer.beginArray();
+        for (Operation<?> operation : operations) {
+            writer.beginObject();
+            writer.name(FIELD_METHOD).value(operation.method);
+            writer.name(FIELD_RESOURCE).value(operation.resourceName);
+            if (operation.params != null) {
+                writer.name(FIELD_DATA).beginObject();
+                for (Map.Entry<String, Object> param : operation.params.entrySet()) {
+                    writer.name(param.getKey());
+                    Object value = param.getValue();
+                    if (value instanceof Number)
+                        writer.value((Number) value);
+                    else
+                        writer.value(value == null ? null : value.toString());
+                }
+                writer.endObject();
+                if (operation.idempotencyKey != null)
+                    writer.name(FIELD_IDEMPOTENCY_KEY).value(operation.idempotencyKey);
+            } else {
+                writer.name(FIELD_ID).value(operation.id);
+                writer.name(FIELD_CLIENT_SECRET).value(operation.clientSecret);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A single operation within a batch. The operation completes when the batch it belongs to has
+     * been sent.
+     *
+     * @param <T> type of resource
+     */
+    public static class Operation<T extends Resource> extends FutureTask<ResourceResponse<T>> {
+        private final ResourceParser<T> parser;
+        private final String method;
+        private final String resourceName;
+        private final Map<String, Object> params;
+        private final String idempotencyKey;
+        private final int id;
+        private final String clientSecret;
+        private final ResponseCallback<ResourceResponse<T>> callback;
+
+        private Operation(ResourceParser<T> parser, String method, String resourceName,
+                          Map<String, Object> params, String idempotencyKey, int id,
+                          String clientSecret,
+                          ResponseCallback<ResourceResponse<T>> callback) {
+            // completed by the batch rather than run
+            super(() -> {
+                throw new IllegalStateException();
+            });
+            this.parser = parser;
+            this.method = method;
+            this.resourceName = resourceName;
+            this.params = params;
+            this.idempotencyKey = idempotencyKey;
+            this.id = id;
+            this.clientSecret = clientSecret;
+            this.callback = callback;
+        }
+
+        /**
+         * Waits for the batch to be sent and returns the result of this operation. If the waiting
+         * thread is interrupted, this operation is cancelled.
+         *
+         * @return response
+         * @throws IOException if the batch could not be sent
+         */
+        public ResourceResponse<T> await() throws IOException {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for batch");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(ResourceResponse<?> response) {
+            set((ResourceResponse<T>) response);
+        }
+
+        private void fail(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null)
+                return;
+            ResourceResponse<T> response = null;
+            try {
+                response = get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                // no response
+            }
+            callback.onResponse(response);
+        }
+    }
+}
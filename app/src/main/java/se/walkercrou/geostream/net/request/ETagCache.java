@@ -0,0 +1,87 @@
+package se.walkercrou.geostream.net.request;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.response.Response;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+
+/**
+ * Remembers the ETag and parsed resources of the last successful GET to each URL so that the next
+ * GET can be made conditional. If the server answers 304 Not Modified the previously parsed
+ * resources are returned without anything being downloaded or parsed.
+ */
+final class ETagCache {
+    /**
+     * Maximum amount of URLs to remember.
+     */
+    static final int MAX_ENTRIES = 32;
+
+    // url -> last response, in access order so the least recently used url is dropped first
+    private static final Map<String, Entry> entries
+            = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ETagCache() {
+    }
+
+    /**
+     * Sends a conditional GET over the specified connection.
+     *
+     * @param c      context
+     * @param parser to parse the resources with if they have changed
+     * @param conn   unconnected connection
+     * @param <T>    type of resource
+     * @return response, either freshly parsed or reusing the last resources
+     * @throws IOException if the connection failed
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Resource> ResourceResponse<T> send(Context c, ResourceParser<T> parser,
+                                                         HttpURLConnection conn)
+            throws IOException {
+        String url = conn.getURL().toString();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+        }
+        if (entry != null)
+            conn.setRequestProperty("If-None-Match", entry.etag);
+
+        if (entry != null && conn.getResponseCode() == Response.STATUS_NOT_MODIFIED) {
+            Response.openBody(conn).close(); // release the connection
+            return new ResourceResponse<>((List<T>) entry.results, conn);
+        }
+
+        ResourceResponse<T> response = new ResourceResponse<>(c, parser, conn);
+        String etag = conn.getHeaderField("ETag");
+        synchronized (entries) {
+            if (etag != null && !response.isError())
+                entries.put(url, new Entry(etag, response.getList()));
+            else
+                entries.remove(url);
+        }
+        return response;
+    }
+
+    private static class Entry {
+        private final String etag;
+        private final List<? extends Resource> results;
+
+        private Entry(String etag, List<? extends Resource> results) {
+            this.etag = etag;
+            this.results = Collections.unmodifiableList(results);
+        }
+    }
+}
@@ -5,25 +5,54 @@ import android.content.Context;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 
+import se.walkercrou.geostream.net.MediaCache;
+import se.walkercrou.geostream.net.ProgressiveDownload;
 import se.walkercrou.geostream.net.response.MediaResponse;
-import se.walkercrou.geostream.post.Post;
 
 /**
- * Represents a request for media on the server
+ * Represents a request for media on the server. The downloaded media is written through the
+ * {@link MediaCache}.
  */
 public class MediaRequest extends Request<MediaResponse> {
     private final Context c;
+    private final String route; // key of media in cache
+    private final long expiresAt;
+    private ProgressiveDownload download;
 
-    public MediaRequest(Context c, String route) {
+    public MediaRequest(Context c, String route, long expiresAt) {
         super(route, !route.startsWith("http://"));
         this.c = c;
+        this.route = route;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Sets the {@link ProgressiveDownload} to report to as the media is written to the cache so
+     * that it can be read before the request has completed.
+     *
+     * @param download to report to
+     * @return this request
+     */
+    public MediaRequest setProgressiveDownload(ProgressiveDownload download) {
+        this.download = download;
+        return this;
     }
 
     @Override
     public MediaResponse send() throws IOException {
         // just a simple GET request here
-        boolean video = url.toString().endsWith(Post.VIDEO_FILE_EXTENSION + '/') ||
-                url.toString().endsWith(Post.VIDEO_FILE_EXTENSION);
-        return new MediaResponse(c, video, getConnection());
+        HttpURLConnection conn = getConnection();
+        // media is already compressed and the length is needed to stream it while downloading
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        if (download == null)
+            return new MediaResponse(MediaCache.get(c), route, expiresAt, null, conn);
+        try {
+            download.setLength(conn.getContentLength());
+            return new MediaResponse(MediaCache.get(c), route, expiresAt, download, conn);
+        } catch (IOException e) {
+            // don't leave readers of the download waiting on a connection that never opened
+            download.onError(e);
+            throw e;
+        }
     }
 }
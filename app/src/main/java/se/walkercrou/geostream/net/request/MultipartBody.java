@@ -0,0 +1,122 @@
+package se.walkercrou.geostream.net.request;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import se.walkercrou.geostream.net.request.ResourceCreateRequest.MediaData;
+
+/**
+ * A multipart/form-data request body. The form is laid out ahead of time so that it's exact length
+ * is known before anything is written, and files are streamed to the connection through a fixed
+ * size buffer rather than being read into memory.
+ */
+final class MultipartBody {
+    /**
+     * Size of the buffer used to copy files to the connection.
+     */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    // form writing constants
+    private static final String NEW_LINE = "\r\n";
+    private static final String TWO_HYPHENS = "--";
+    private static final String CHARSET = "UTF-8";
+
+    private final String boundary;
+    private final List<Object> parts = new ArrayList<>(); // either byte[] or File
+    private long length;
+
+    MultipartBody(String boundary, Map<String, Object> parameters) {
+        this.boundary = boundary;
+
+        // write form boundary (separates form data)
+        add(TWO_HYPHENS + boundary + NEW_LINE);
+        for (String param : parameters.keySet()) {
+            // start form data, write content disposition
+            String contentDisposition = "Content-Disposition: form-data; name=\"" + param + '"';
+            Object value = parameters.get(param);
+            if (value instanceof MediaData) {
+                // parameter value is a file, add extra file info to content disposition
+                MediaData mediaData = (MediaData) value;
+                add(contentDisposition + ";filename=\"" + mediaData.name + '"' + NEW_LINE);
+                add(NEW_LINE); // blank line between CD and data
+                if (mediaData.data instanceof File) {
+                    // data is in the form of a file (video), streamed when written
+                    File file = (File) mediaData.data;
+                    parts.add(file);
+                    length += file.length();
+                } else
+                    // file is already a raw byte array
+                    add((byte[]) mediaData.data);
+            } else {
+                add(contentDisposition + NEW_LINE);
+                add(NEW_LINE); // blank line between CD and data
+                add(value.toString());
+            }
+            // end form data
+            add(NEW_LINE + TWO_HYPHENS + boundary + NEW_LINE);
+        }
+    }
+
+    /**
+     * Returns the value for the "Content-Type" header of this body.
+     *
+     * @return content type
+     */
+    String getContentType() {
+        return "multipart/form-data;boundary=" + boundary;
+    }
+
+    /**
+     * Returns the exact amount of bytes that {@link #writeTo(OutputStream)} will write.
+     *
+     * @return length of body
+     */
+    long getContentLength() {
+        return length;
+    }
+
+    /**
+     * Writes this body to the specified stream.
+     *
+     * @param out to write to
+     * @throws IOException if an error occurs while writing or reading a file
+     */
+    void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+        for (Object part : parts) {
+            if (part instanceof File) {
+                if (buffer == null)
+                    buffer = new byte[BUFFER_SIZE];
+                FileInputStream fin = new FileInputStream((File) part);
+                try {
+                    int n;
+                    while ((n = fin.read(buffer)) != -1)
+                        out.write(buffer, 0, n);
+                } finally {
+                    fin.close();
+                }
+            } else
+                out.write((byte[]) part);
+        }
+        out.flush();
+    }
+
+    private void add(String str) {
+        try {
+            add(str.getBytes(CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void add(byte[] bytes) {
+        parts.add(bytes);
+        length += bytes.length;
+    }
+}
@@ -0,0 +1,458 @@
+package se.walkercrou.geostream.net.request;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Durable queue of {@link ResourceCreateRequest}s. Each request is written to disk, along with any
+ * media it uploads, before it is sent so that it survives a dropped connection or the process
+ * being killed. Requests are sent in the background a few at a time and are retried with
+ * exponential backoff until they succeed or are rejected by the server. While the device is
+ * offline failed requests wait for the network instead, and are sent as soon as it is back. Each
+ * request carries an idempotency key, so the server creates the resource only once even if a
+ * response is lost and the request is sent again. Requests without media are sent through a
+ * {@link BatchRequest}.
+ */
+public final class Outbox {
+    /**
+     * Name of the directory within the files dir where pending requests are stored.
+     */
+    public static final String DIR_NAME = "outbox";
+    /**
+     * The maximum amount of requests that are sent at once.
+     */
+    public static final int MAX_CONCURRENT = 2;
+    /**
+     * The delay (in millis) before the first retry of a failed request, doubled on every retry.
+     */
+    public static final long BASE_DELAY = 2 * 1000;
+    /**
+     * The maximum delay (in millis) between retries.
+     */
+    public static final long MAX_DELAY = 5 * 60 * 1000;
+
+    private static final String ENTRY_SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String FIELD_RESOURCE = "resource";
+    private static final String FIELD_KEY = "key";
+    private static final String FIELD_ATTEMPTS = "attempts";
+    private static final String FIELD_PARAMS = "params";
+    private static final String FIELD_MEDIA = "media";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_FILE = "file";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int STATUS_REQUEST_TIMEOUT = 408;
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static Outbox instance;
+
+    private final Context c;
+    private final File dir;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final Map<String, ResourceParser<?>> parsers = new HashMap<>(); // resource -> parser
+    private final Map<Long, Entry> entries = new HashMap<>(); // id -> pending entry
+    private final Map<Long, ResponseCallback<?>> callbacks = new HashMap<>(); // id -> callback
+    private final List<Entry> offline = new ArrayList<>(); // entries waiting for the network
+    private long lastId;
+
+    private Outbox(Context c) {
+        this.c = c;
+        dir = new File(c.getFilesDir(), DIR_NAME);
+        if (!dir.exists() && !dir.mkdirs())
+            G.e("could not create outbox directory: " + dir);
+        executor = new ScheduledThreadPoolExecutor(MAX_CONCURRENT,
+                new RequestDispatcher.QueueThreadFactory(getClass().getSimpleName()));
+        load();
+        c.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (G.isConnectedToNetwork(context))
+                    onConnected();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Returns the process wide outbox, creating it and loading the requests left over by a
+     * previous run if needed.
+     *
+     * @param c context
+     * @return outbox
+     */
+    public static synchronized Outbox get(Context c) {
+        if (instance == null)
+            instance = new Outbox(c.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Registers the parser for the responses to requests that create the specified resource.
+     * Pending requests for a resource are not sent until its parser has been registered.
+     *
+     * @param resourceName name of resource
+     * @param parser       to parse responses with
+     * @return this outbox
+     */
+    public synchronized Outbox register(String resourceName, ResourceParser<?> parser) {
+        if (parsers.put(resourceName, parser) == null) {
+            for (Entry entry : entries.values()) {
+                if (entry.resourceName.equals(resourceName))
+                    schedule(entry, 0);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a request to create the specified resource to disk and sends it in the background.
+     * Any {@link ResourceCreateRequest.MediaData} file is moved into the outbox.
+     *
+     * @param resourceName name of resource to create
+     * @param params       parameters of request
+     * @param callback     to notify on the main thread when the request is done, null if given up
+     *                     on because its media is gone, may be null
+     * @param <T>          type of resource
+     * @throws IOException if the request could not be written to disk
+     */
+    public <T extends Resource> void enqueue(String resourceName, Map<String, Object> params,
+                                             ResponseCallback<ResourceResponse<T>> callback)
+            throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = new Entry(nextId(), resourceName, UUID.randomUUID().toString());
+            if (callback != null)
+                callbacks.put(entry.id, callback);
+        }
+
+        // persist everything before anything is sent
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            Object value = param.getValue();
+            if (value instanceof ResourceCreateRequest.MediaData) {
+                ResourceCreateRequest.MediaData media = (ResourceCreateRequest.MediaData) value;
+                File file = new File(dir, entry.id + "_" + param.getKey());
+                if (media.data instanceof File)
+                    move((File) media.data, file);
+                else
+                    write((byte[]) media.data, file);
+                entry.media.put(param.getKey(), new String[]{media.name, file.getPath()});
+            } else
+                entry.params.put(param.getKey(), value.toString());
+        }
+        save(entry);
+        G.i("Queued request to create " + resourceName + " #" + entry.id);
+
+        synchronized (this) {
+            entries.put(entry.id, entry);
+            if (parsers.containsKey(resourceName))
+                schedule(entry, 0);
+        }
+    }
+
+    /**
+     * Returns the amount of requests that have not been completed yet.
+     *
+     * @return amount of pending requests
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void send(Entry entry) {
+        // called on an executor thread
+        ResourceParser<?> parser;
+        synchronized (this) {
+            parser = parsers.get(entry.resourceName);
+        }
+
+        if (entry.media.isEmpty()) {
+            // small requests are sent together with any others made around the same time
+            batch(entry, parser);
+            return;
+        }
+        for (String[] media : entry.media.values()) {
+            if (!new File(media[1]).exists()) {
+                G.e("Giving up on outbox request #" + entry.id + ", its media is gone: "
+                        + media[1]);
+                finish(entry, null);
+                return;
+            }
+        }
+
+        ResourceResponse<?> response;
+        try {
+            response = send(entry, parser);
+        } catch (IOException | RuntimeException e) {
+            G.e("Outbox request #" + entry.id + " failed", e);
+            retry(entry);
+            return;
+        }
+        onResponse(entry, response);
+    }
+
+    private void onResponse(Entry entry, ResourceResponse<?> response) {
+        G.d(response);
+        // retry lost connections, server errors and requests the server asks to retry later, but a
+        // rejected request will be rejected again
+        int status = response == null ? 0 : response.getStatusCode();
+        if (response == null || status >= 500 || status == STATUS_REQUEST_TIMEOUT
+                || status == STATUS_TOO_MANY_REQUESTS)
+            retry(entry);
+        else
+            finish(entry, response);
+    }
+
+    private <T extends Resource> void batch(Entry entry, ResourceParser<T> parser) {
+        Map<String, Object> params = new HashMap<String, Object>(entry.params);
+        BatchRequest.create(c, parser, entry.resourceName, params, entry.key,
+                response -> onResponse(entry, response));
+    }
+
+    private <T extends Resource> ResourceResponse<T> send(Entry entry, ResourceParser<T> parser)
+            throws IOException {
+        ResourceCreateRequest<T> request = new ResourceCreateRequest<>(c, parser,
+                entry.resourceName);
+        request.setIdempotencyKey(entry.key);
+        for (Map.Entry<String, String> param : entry.params.entrySet())
+            request.set(param.getKey(), param.getValue());
+        for (Map.Entry<String, String[]> media : entry.media.entrySet()) {
+            String[] value = media.getValue();
+            request.set(media.getKey(),
+                    new ResourceCreateRequest.MediaData(value[0], new File(value[1])));
+        }
+        return request.send();
+    }
+
+    private void retry(Entry entry) {
+        synchronized (this) {
+            if (!G.isConnectedToNetwork(c)) {
+                // backing off is no use while offline, send it once the network is back
+                G.i("Outbox request #" + entry.id + " is waiting for the network");
+                offline.add(entry);
+                return;
+            }
+        }
+
+        entry.attempts++;
+        try {
+            save(entry);
+        } catch (IOException e) {
+            G.e("could not update outbox request #" + entry.id, e);
+        }
+
+        // exponential backoff with jitter so that queued requests don't retry in lockstep
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(entry.attempts - 1, 20));
+        delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+        G.i("Retrying outbox request #" + entry.id + " in " + delay + "ms");
+        synchronized (this) {
+            schedule(entry, delay);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish(Entry entry, ResourceResponse<?> response) {
+        for (String[] media : entry.media.values())
+            new File(media[1]).delete();
+        new File(dir, entry.id + ENTRY_SUFFIX).delete();
+
+        ResponseCallback<ResourceResponse<?>> callback;
+        synchronized (this) {
+            entries.remove(entry.id);
+            callback = (ResponseCallback<ResourceResponse<?>>) callbacks.remove(entry.id);
+        }
+        if (callback != null)
+            mainHandler.post(() -> callback.onResponse(response));
+    }
+
+    private synchronized void onConnected() {
+        // called on the main thread
+        if (offline.isEmpty())
+            return;
+        G.i("Network is back, sending " + offline.size() + " outbox requests");
+        for (Entry entry : offline)
+            schedule(entry, 0);
+        offline.clear();
+    }
+
+    private void schedule(Entry entry, long delay) {
+        executor.schedule(() -> send(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private long nextId() {
+        // unique across restarts
+        lastId = Math.max(lastId + 1, System.currentTimeMillis());
+        return lastId;
+    }
+
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            } else if (!name.endsWith(ENTRY_SUFFIX))
+                continue; // media of an entry
+
+            try {
+                Entry entry = Entry.read(Long.parseLong(name.substring(0,
+                        name.length() - ENTRY_SUFFIX.length())), file);
+                entries.put(entry.id, entry);
+                lastId = Math.max(lastId, entry.id);
+            } catch (IOException | JSONException | NumberFormatException e) {
+                G.e("Dropping unreadable outbox entry: " + file, e);
+                file.delete();
+            }
+        }
+        G.i("Outbox loaded with " + entries.size() + " pending requests.");
+    }
+
+    private void save(Entry entry) throws IOException {
+        File file = new File(dir, entry.id + ENTRY_SUFFIX);
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+        try {
+            write(entry.toJson().toString().getBytes("UTF-8"), temp);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not write outbox entry: " + file);
+        }
+    }
+
+    private static void write(byte[] data, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        if (from.renameTo(to))
+            return;
+
+        // different file system, copy instead
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    out.write(buffer, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        from.delete();
+    }
+
+    private static String readString(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0, n;
+            while (offset < data.length && (n = in.read(data, offset, data.length - offset)) != -1)
+                offset += n;
+        } finally {
+            in.close();
+        }
+        return new String(data, "UTF-8");
+    }
+
+    /**
+     * A pending request as it is stored on disk.
+     */
+    private static class Entry {
+        private final long id;
+        private final String resourceName;
+        private final String key; // idempotency key, the same for every attempt
+        private final Map<String, String> params = new HashMap<>();
+        private final Map<String, String[]> media = new HashMap<>(); // param -> {name, path}
+        private int attempts;
+
+        private Entry(long id, String resourceName, String key) {
+            this.id = id;
+            this.resourceName = resourceName;
+            this.key = key;
+        }
+
+        private static Entry read(long id, File file) throws IOException, JSONException {
+            // e.g. {"resource":"posts","key":"<uuid>","attempts":1,"params":{"lat":"1.0"},
+            //       "media":{"media_file":{"name":"media_file.mp4","file":"<path>"}}}
+            JSONObject json = new JSONObject(readString(file));
+            String idempotencyKey = json.optString(FIELD_KEY, null); // missing in older entries
+            Entry entry = new Entry(id, json.getString(FIELD_RESOURCE),
+                    idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString());
+            entry.attempts = json.getInt(FIELD_ATTEMPTS);
+            JSONObject params = json.getJSONObject(FIELD_PARAMS);
+            for (Iterator<String> iter = params.keys(); iter.hasNext(); ) {
+                String key = iter.next();
+                entry.params.put(key, params.getString(key));
+            }
+            JSONObject media = json.getJSONObject(FIELD_MEDIA);
+            for (Iterator<String> iter = media.keys(); iter.hasNext(); ) {
+                String key = iter.next();
+                JSONObject value = media.getJSONObject(key);
+                entry.media.put(key, new String[]{value.getString(FIELD_NAME),
+                        value.getString(FIELD_FILE)});
+            }
+            return entry;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject params = new JSONObject();
+            for (Map.Entry<String, String> param : this.params.entrySet())
+                params.put(param.getKey(), param.getValue());
+            JSONObject media = new JSONObject();
+            for (Map.Entry<String, String[]> m : this.media.entrySet()) {
+                media.put(m.getKey(), new JSONObject()
+                        .put(FIELD_NAME, m.getValue()[0])
+                        .put(FIELD_FILE, m.getValue()[1]));
+            }
+            return new JSONObject()
+                    .put(FIELD_RESOURCE, resourceName)
+                    .put(FIELD_KEY, key)
+                    .put(FIELD_ATTEMPTS, attempts)
+                    .put(FIELD_PARAMS, params)
+                    .put(FIELD_MEDIA, media);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package se.walkercrou.geostream.net.request;
 
-import android.os.AsyncTask;
-
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import se.walkercrou.geostream.net.ConnectionStats;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.response.BinaryResourceReader;
+import se.walkercrou.geostream.net.response.JsonResourceReader;
 import se.walkercrou.geostream.net.response.Response;
 import se.walkercrou.geostream.util.G;
 
@@ -29,8 +34,14 @@ public abstract class Request<T extends Response> {
      * User agent property to send in each request
      */
     public static final String USER_AGENT = G.app.name + '/' + G.app.versionCode + " (Android)";
+    /**
+     * Accept property to send in each request, the compact binary encoding is preferred over JSON
+     */
+    public static final String ACCEPT = BinaryResourceReader.MEDIA_TYPE + ", "
+            + JsonResourceReader.MEDIA_TYPE + ";q=0.5, */*;q=0.1";
 
     protected URL url;
+    private int readTimeout; // millis, 0 waits forever
 
     /**
      * Creates a new Request with the specified route. The route is appended to the server url to
@@ -63,7 +74,9 @@ public abstract class Request<T extends Response> {
     }
 
     /**
-     * Opens a new connection to the URL of this request.
+     * Opens a new connection to the URL of this request. The response body should be read with
+     * {@link se.walkercrou.geostream.net.response.Response#openBody(HttpURLConnection)} and
+     * closed so that the underlying socket can be reused.
      *
      * @return new connection
      * @throws IOException
@@ -71,9 +84,23 @@ public abstract class Request<T extends Response> {
     public HttpURLConnection getConnection() throws IOException {
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setRequestProperty("User-Agent", USER_AGENT);
+        conn.setRequestProperty("Accept-Encoding", "gzip"); // decoded in Response.openBody()
+        conn.setRequestProperty("Accept", ACCEPT);
+        conn.setReadTimeout(readTimeout);
+        ConnectionStats.onOpen(conn);
         return conn;
     }
 
+    /**
+     * Sets how long to wait for the server's response before giving up with a
+     * {@link java.net.SocketTimeoutException}. Waits forever by default.
+     *
+     * @param millis to wait for, 0 to wait forever
+     */
+    public void setReadTimeout(int millis) {
+        readTimeout = millis;
+    }
+
     /**
      * Sends this request to the server
      *
@@ -83,27 +110,38 @@ public abstract class Request<T extends Response> {
     public abstract T send() throws IOException;
 
     /**
-     * Sends this request in a background task.
+     * Sends this request on a background thread and notifies the specified callback on the main
+     * thread when a response is received. Requests of the same class share a queue, requests of
+     * different classes do not wait on each other.
+     *
+     * @param callback to notify when complete, may be null
+     * @return future response
+     */
+    public Future<T> enqueue(ResponseCallback<T> callback) {
+        G.d("Request: " + url);
+        return RequestDispatcher.submit(this, callback);
+    }
+
+    /**
+     * Sends this request on a background thread and waits for the response. If the waiting
+     * thread is interrupted, the request is cancelled.
      *
      * @return response
+     * @throws IOException if the request could not be completed
      */
     public T sendInBackground() throws IOException {
-        G.d("Request: " + url);
+        Future<T> future = enqueue(null);
         try {
-            return new AsyncTask<Void, Void, T>() {
-                @Override
-                protected T doInBackground(Void... params) {
-                    try {
-                        T response = send();
-                        G.d(response);
-                        return response;
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            }.execute().get();
-        } catch (Exception e) {
-            throw new IOException(e);
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + url);
         }
     }
 }
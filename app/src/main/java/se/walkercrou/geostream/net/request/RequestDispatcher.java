@@ -0,0 +1,112 @@
+package se.walkercrou.geostream.net.request;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.walkercrou.geostream.net.ConnectionStats;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.response.Response;
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Runs {@link Request}s off of the main thread. Each request class is given it's own bounded
+ * queue so that a slow request of one kind (e.g. a video download) does not hold up requests of
+ * another kind (e.g. a map refresh).
+ */
+final class RequestDispatcher {
+    /**
+     * The maximum amount of threads that will run requests of the same class at once.
+     */
+    static final int THREADS_PER_QUEUE = 2;
+    /**
+     * The time (in seconds) an idle thread is kept alive before it is released.
+     */
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Map<Class<?>, ThreadPoolExecutor> queues = new HashMap<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private RequestDispatcher() {
+    }
+
+    /**
+     * Submits the specified request to the queue for it's class.
+     *
+     * @param request  to send
+     * @param callback to notify on the main thread when complete, may be null
+     * @param <T>      type of response
+     * @return future response
+     */
+    static <T extends Response> Future<T> submit(Request<T> request,
+                                                 ResponseCallback<T> callback) {
+        FutureTask<T> task = new FutureTask<T>(() -> {
+            T response = request.send();
+            G.d(response);
+            G.d(ConnectionStats.summary());
+            return response;
+        }) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled())
+                    return;
+                T response = null;
+                try {
+                    response = get();
+                } catch (ExecutionException e) {
+                    G.e("Request failed: " + request.url, e.getCause());
+                } catch (InterruptedException | CancellationException e) {
+                    return;
+                }
+                T result = response;
+                mainHandler.post(() -> callback.onResponse(result));
+            }
+        };
+        queueFor(request.getClass()).execute(task);
+        return task;
+    }
+
+    private static synchronized ThreadPoolExecutor queueFor(Class<?> requestClass) {
+        ThreadPoolExecutor queue = queues.get(requestClass);
+        if (queue == null) {
+            queue = new ThreadPoolExecutor(THREADS_PER_QUEUE, THREADS_PER_QUEUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new QueueThreadFactory(requestClass.getSimpleName()));
+            queue.allowCoreThreadTimeOut(true);
+            queues.put(requestClass, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Creates named background priority threads for a request queue.
+     */
+    static class QueueThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        QueueThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, name + " #" + count.incrementAndGet());
+        }
+    }
+}
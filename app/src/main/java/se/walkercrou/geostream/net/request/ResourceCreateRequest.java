@@ -2,15 +2,15 @@ package se.walkercrou.geostream.net.request;
 
 import android.content.Context;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
 
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 
 /**
@@ -22,11 +22,18 @@ import se.walkercrou.geostream.net.response.ResourceResponse;
  */
 public class ResourceCreateRequest<T extends Resource> extends ResourceListRequest<T>
         implements ParameterizedRequest {
+    /**
+     * Header that carries the key the client generated for a request, so that the server creates
+     * the resource only once no matter how many times the request is retried.
+     */
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+
     // Internal map of data to write
     private final Map<String, Object> parameters = new HashMap<>();
+    private String idempotencyKey;
 
-    public ResourceCreateRequest(Context c, Class<T> resourceClass, String resourceName) {
-        super(c, resourceClass, resourceName);
+    public ResourceCreateRequest(Context c, ResourceParser<T> parser, String resourceName) {
+        super(c, parser, resourceName);
     }
 
     @Override
@@ -35,6 +42,18 @@ public class ResourceCreateRequest<T extends Resource> extends ResourceListReque
         return this;
     }
 
+    /**
+     * Sets the key that identifies this request across retries. A retry with the same key is
+     * answered with the resource the first attempt created, if it got that far.
+     *
+     * @param idempotencyKey unique key, may be null
+     * @return this request
+     */
+    public ResourceCreateRequest<T> setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+        return this;
+    }
+
     @Override
     public ResourceResponse<T> send() throws IOException {
         // obtain server connection
@@ -42,67 +61,41 @@ public class ResourceCreateRequest<T extends Resource> extends ResourceListReque
         conn.setUseCaches(false);
         conn.setDoOutput(true);
 
-        // form writing constants
-        final String newLine = "\r\n";
-        final String twoHyphens = "--";
-        final String boundary = "GeostreamFormBoundary" + System.currentTimeMillis();
+        // lay out the form so we know it's length before writing anything
+        MultipartBody body = new MultipartBody(
+                "GeostreamFormBoundary" + System.currentTimeMillis(), parameters);
 
         // configure connection
         conn.setRequestMethod("POST");
-        conn.setRequestProperty("Connection", "Keep-Alive");
         conn.setRequestProperty("Cache-Control", "no-cache");
-        conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + boundary);
-
-        // start request
-        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-        // write form boundary (separates form data)
-        out.writeBytes(twoHyphens + boundary + newLine);
-        for (String param : parameters.keySet()) {
-            // start form data, write content disposition
-            String contentDisposition = "Content-Disposition: form-data; name=\"" + param + '"';
-            Object value = parameters.get(param);
-            if (value instanceof MediaData) {
-                // parameter value is a file, add extra file info to content disposition
-                MediaData mediaData = (MediaData) value;
-                contentDisposition += ";filename=\"" + mediaData.name + '"' + newLine;
-                out.writeBytes(contentDisposition);
-                out.writeBytes(newLine); // blank line between CD and data
-                // write file data to stream
-                if (mediaData.data instanceof File) {
-                    // data is in the form of a file (video)
-                    File file = (File) mediaData.data;
-                    byte[] buffer = new byte[(int) file.length()];
-                    FileInputStream fin = new FileInputStream(file);
-                    fin.read(buffer);
-                    fin.close();
-                    out.write(buffer);
-                } else
-                    // file is already a raw byte array
-                    out.write((byte[]) mediaData.data);
-            } else {
-                contentDisposition += newLine;
-                out.writeBytes(contentDisposition);
-                out.writeBytes(newLine); // blank line between CD and data
-                out.writeBytes(value.toString());
-            }
-            // end form data
-            out.writeBytes(newLine);
-            out.writeBytes(twoHyphens + boundary + newLine);
-        }
+        conn.setRequestProperty("Content-Type", body.getContentType());
+        if (idempotencyKey != null)
+            conn.setRequestProperty(HEADER_IDEMPOTENCY_KEY, idempotencyKey);
 
-        // close output stream
-        out.flush();
-        out.close();
+        // stream the body instead of letting the connection buffer it
+        long length = body.getContentLength();
+        if (length <= Integer.MAX_VALUE)
+            conn.setFixedLengthStreamingMode((int) length);
+        else
+            conn.setChunkedStreamingMode(0);
+
+        // write request
+        OutputStream out = conn.getOutputStream();
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
 
-        return new ResourceResponse(c, resourceClass, conn);
+        return new ResourceResponse<>(c, parser, conn);
     }
 
     /**
      * Represents a File that will be written to a multipart/form-data HTTP request.
      */
     public static class MediaData {
-        private final String name;
-        private final Object data;
+        final String name;
+        final Object data;
 
         public MediaData(String name, File data) {
             this.name = name;
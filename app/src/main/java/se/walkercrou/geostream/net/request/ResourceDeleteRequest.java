@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 
 /**
@@ -17,9 +18,9 @@ import se.walkercrou.geostream.net.response.ResourceResponse;
 public class ResourceDeleteRequest<T extends Resource> extends ResourceDetailRequest<T> {
     private final String clientSecret;
 
-    public ResourceDeleteRequest(Context c, Class<T> resourceClass, String resourceName, int resourceId,
-                                 String clientSecret) {
-        super(c, resourceClass, resourceName, resourceId);
+    public ResourceDeleteRequest(Context c, ResourceParser<T> parser, String resourceName,
+                                 int resourceId, String clientSecret) {
+        super(c, parser, resourceName, resourceId);
         this.clientSecret = clientSecret;
     }
 
@@ -28,6 +29,6 @@ public class ResourceDeleteRequest<T extends Resource> extends ResourceDetailReq
         HttpURLConnection conn = getConnection();
         conn.setRequestMethod("DELETE");
         conn.setRequestProperty("ClientSecret", clientSecret);
-        return new ResourceResponse(c, resourceClass, conn);
+        return new ResourceResponse<>(c, parser, conn);
     }
 }
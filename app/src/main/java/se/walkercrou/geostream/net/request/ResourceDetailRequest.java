@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 
 /**
@@ -13,19 +14,19 @@ import se.walkercrou.geostream.net.response.ResourceResponse;
  */
 public class ResourceDetailRequest<T extends Resource> extends Request<ResourceResponse<T>> {
     protected final Context c;
-    protected final Class<T> resourceClass;
+    protected final ResourceParser<T> parser;
 
-    public ResourceDetailRequest(Context c, Class<T> resourceClass, String resourceName,
+    public ResourceDetailRequest(Context c, ResourceParser<T> parser, String resourceName,
                                  int resourceId) {
         // "<serverUrl>/api/<resourceName>/<resourceId>/" (e.g. "http://example.com/api/post/42/")
         super(Request.RESOURCE_ROOT + resourceName + '/' + resourceId + '/');
         this.c = c;
-        this.resourceClass = resourceClass;
+        this.parser = parser;
     }
 
     @Override
     public ResourceResponse<T> send() throws IOException {
-        // Simple HTTP GET request, JSON expected as response
-        return new ResourceResponse(c, resourceClass, getConnection());
+        // Simple HTTP GET request, JSON expected as response unless unchanged since last time
+        return ETagCache.send(c, parser, getConnection());
     }
 }
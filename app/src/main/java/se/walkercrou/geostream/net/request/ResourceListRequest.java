@@ -5,10 +5,11 @@ import android.content.Context;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 import se.walkercrou.geostream.util.G;
 
@@ -18,20 +19,49 @@ import se.walkercrou.geostream.util.G;
 public class ResourceListRequest<T extends Resource> extends Request<ResourceResponse<T>>
         implements ParameterizedRequest {
     protected final Context c;
-    protected final Class<T> resourceClass;
-    protected final Map<String, Object> params = new HashMap<>();
+    protected final ResourceParser<T> parser;
+    // sorted so that the same query always has the same url
+    protected final Map<String, Object> params = new TreeMap<>();
+    private boolean conditional = true;
 
-    public ResourceListRequest(Context c, Class<T> resourceClass, String resourceName,
+    public ResourceListRequest(Context c, ResourceParser<T> parser, String resourceName,
                                String urlExtension) {
         // "<serverUrl>/api/<resourceName>/<urlExt>" (e.g. "http://example.com/api/posts/nearby/")
         super(Request.RESOURCE_ROOT + resourceName + '/'
                 + (urlExtension == null ? "" : urlExtension + '/'));
         this.c = c;
-        this.resourceClass = resourceClass;
+        this.parser = parser;
     }
 
-    public ResourceListRequest(Context c, Class<T> resourceClass, String resourceName) {
-        this(c, resourceClass, resourceName, null);
+    public ResourceListRequest(Context c, ResourceParser<T> parser, String resourceName) {
+        this(c, parser, resourceName, null);
+    }
+
+    /**
+     * Creates a request for the specified absolute URL, e.g. the next page of a previous
+     * response.
+     *
+     * @param c      context
+     * @param parser to parse the resources with
+     * @param url    absolute url of request
+     */
+    public ResourceListRequest(Context c, ResourceParser<T> parser, URL url) {
+        super(url.toString(), false);
+        this.c = c;
+        this.parser = parser;
+    }
+
+    /**
+     * Sets whether the request is made conditional through the {@link ETagCache}, which keeps the
+     * parsed results of each URL. Requests for URLs that are only ever requested once, such as the
+     * pages of a {@link ResourcePager}, should not be.
+     *
+     * @param conditional false to skip the cache
+     * @return this request
+     */
+    public ResourceListRequest<T> setConditional(boolean conditional) {
+        this.conditional = conditional;
+        return this;
     }
 
     @Override
@@ -56,6 +86,8 @@ public class ResourceListRequest<T extends Resource> extends Request<ResourceRes
         url = new URL(urlBuilder.toString());
         G.d("url = " + url);
 
-        return new ResourceResponse(c, resourceClass, getConnection());
+        if (!conditional)
+            return new ResourceResponse<>(c, parser, getConnection());
+        return ETagCache.send(c, parser, getConnection());
     }
 }
@@ -0,0 +1,96 @@
+package se.walkercrou.geostream.net.request;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+
+/**
+ * Lazily iterates over the pages of a paginated resource list. Only the current page is held in
+ * memory, pages are not kept by the {@link ETagCache}, and while it is being used the next page is
+ * already being retrieved in the background. Iteration stops after the last page or after a page
+ * that could not be retrieved, in which case {@link #nextPage()} throws.
+ *
+ * @param <T> type of resource
+ */
+public class ResourcePager<T extends Resource> {
+    private final Context c;
+    private final ResourceParser<T> parser;
+    private Future<ResourceResponse<T>> nextPage; // null after the last page
+
+    /**
+     * Creates a new pager that starts with the specified request, which is sent in the background
+     * right away.
+     *
+     * @param c       context
+     * @param parser  to parse the resources with
+     * @param request for the first page
+     */
+    public ResourcePager(Context c, ResourceParser<T> parser, ResourceListRequest<T> request) {
+        this.c = c;
+        this.parser = parser;
+        nextPage = request.setConditional(false).enqueue(null);
+    }
+
+    /**
+     * Returns true if there is another page to retrieve with {@link #nextPage()}.
+     *
+     * @return true if there is another page
+     */
+    public boolean hasNext() {
+        return nextPage != null;
+    }
+
+    /**
+     * Returns the next page, waiting for it if it has not been retrieved yet, and starts
+     * retrieving the page after it.
+     *
+     * @return next page
+     * @throws IOException if the page could not be retrieved
+     */
+    public ResourceResponse<T> nextPage() throws IOException {
+        if (nextPage == null)
+            throw new NoSuchElementException();
+        Future<ResourceResponse<T>> future = nextPage;
+        nextPage = null;
+
+        ResourceResponse<T> page;
+        try {
+            page = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for page");
+        }
+
+        // prefetch the next page while this one is being used
+        String nextUrl = page.getNextUrl();
+        if (!page.isError() && nextUrl != null)
+            nextPage = new ResourceListRequest<>(c, parser, new URL(nextUrl)).setConditional(false)
+                    .enqueue(null);
+        return page;
+    }
+
+    /**
+     * Stops the iteration, cancelling the retrieval of the next page.
+     */
+    public void cancel() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+    }
+}
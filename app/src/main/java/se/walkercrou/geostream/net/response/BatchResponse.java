@@ -0,0 +1,117 @@
+package se.walkercrou.geostream.net.response;
+
+import android.content.Context;
+import android.util.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+
+/**
+ * Represents the response to a batch of operations. The result of each operation is read into its
+ * own {@link ResourceResponse}, in the same order that the operations were sent.
+ */
+public class BatchResponse extends Response<List<ResourceResponse<?>>> {
+    private final List<ResourceResponse<?>> results = new ArrayList<>();
+    private String errorDetail;
+
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_BODY = "body";
+
+    /**
+     * Reads the results of a batch from the specified connection.
+     *
+     * @param c       context
+     * @param parsers to parse the result of each operation with, in order
+     * @param conn    to read from
+     * @throws IOException if the connection failed or the response could not be read
+     */
+    public BatchResponse(Context c, List<? extends ResourceParser<?>> parsers,
+                         HttpURLConnection conn) throws IOException {
+        super(conn);
+
+        ResourceReader reader = ResourceResponse.openReader(in, conn.getContentType());
+        try {
+            if (isError()) {
+                if (reader.peek() == JsonToken.BEGIN_OBJECT)
+                    errorDetail = ResourceResponse.readErrorDetail(reader);
+            } else {
+                // e.g. [{"status":201,"body":{...}},{"status":204,"body":null}]
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (i < parsers.size())
+                        results.add(readResult(c, parsers.get(i), reader));
+                    else
+                        reader.skipValue();
+                }
+                reader.endArray();
+            }
+        } catch (EOFException e) {
+            // empty response body, nothing to parse
+        } catch (ParseException e) {
+            throw new RuntimeException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static <T extends Resource> ResourceResponse<T> readResult(Context c,
+                                                                       ResourceParser<T> parser,
+                                                                       ResourceReader reader)
+            throws IOException, ParseException {
+        // the server writes the status before the body
+        int statusCode = 0;
+        List<T> resources = new ArrayList<>();
+        String detail = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case FIELD_STATUS:
+                    statusCode = reader.nextInt();
+                    break;
+                case FIELD_BODY:
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT)
+                        reader.skipValue(); // e.g. null for a deletion
+                    else if (isStatusError(statusCode))
+                        detail = ResourceResponse.readErrorDetail(reader);
+                    else
+                        resources.add(parser.parse(c, reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new ResourceResponse<>(resources, statusCode, null, detail);
+    }
+
+    @Override
+    public String getErrorDetail() {
+        return errorDetail;
+    }
+
+    /**
+     * Returns the result of each operation, in the same order that the operations were sent.
+     * Empty if the batch as a whole failed.
+     *
+     * @return results of operations
+     */
+    @Override
+    public List<ResourceResponse<?>> get() {
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{status=" + statusCode + ", results="
+                + results.size() + (errorDetail != null ? ", detail=\"" + errorDetail + '"' : "")
+                + '}';
+    }
+}
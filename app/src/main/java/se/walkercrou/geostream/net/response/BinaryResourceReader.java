@@ -0,0 +1,389 @@
+package se.walkercrou.geostream.net.response;
+
+import android.util.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.util.Iso8601;
+
+/**
+ * Reads compact binary responses ("application/x-geostream-bin"). The encoding is the subset of
+ * MessagePack that the server emits: nil, booleans, integers, floats, UTF-8 strings, arrays and
+ * maps. Dates are integers of milliseconds since the epoch, so they need no parsing.
+ */
+public class BinaryResourceReader implements ResourceReader {
+    /**
+     * Media type of binary responses.
+     */
+    public static final String MEDIA_TYPE = "application/x-geostream-bin";
+
+    private static final int NONE = -1;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // read through our own buffer, a DataInputStream takes a lock on every byte it reads
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos, limit;
+    // items left to read in each open container, [0] is the document itself which has one value
+    // maps count their keys and values separately so a key is next when the count is even
+    private int[] remaining = new int[8];
+    private boolean[] isMap = new boolean[8];
+    private int depth;
+    private int peeked = NONE; // type byte that has been read ahead
+
+    public BinaryResourceReader(InputStream in) {
+        this.in = in;
+        remaining[0] = 1;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (remaining[depth] == 0) {
+            if (depth == 0)
+                return JsonToken.END_DOCUMENT;
+            return isMap[depth] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+        }
+
+        int b = peekType();
+        if (isString(b))
+            return isMap[depth] && remaining[depth] % 2 == 0 ? JsonToken.NAME : JsonToken.STRING;
+        else if (isInteger(b) || b == 0xca || b == 0xcb)
+            return JsonToken.NUMBER;
+        else if (isMap(b))
+            return JsonToken.BEGIN_OBJECT;
+        else if (isArray(b))
+            return JsonToken.BEGIN_ARRAY;
+        else if (b == 0xc0)
+            return JsonToken.NULL;
+        else if (b == 0xc2 || b == 0xc3)
+            return JsonToken.BOOLEAN;
+        throw unexpected(b);
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        int b = nextType();
+        long size = mapSize(b);
+        if (size == NONE)
+            throw unexpected(b);
+        push(true, size * 2);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        pop(true);
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        int b = nextType();
+        long size = arraySize(b);
+        if (size == NONE)
+            throw unexpected(b);
+        push(false, size);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        pop(false);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return remaining[depth] > 0;
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        if (!isMap[depth] || remaining[depth] % 2 != 0)
+            throw new IOException("expected a name");
+        return nextString();
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        int b = nextType();
+        if (isString(b))
+            return readString(b);
+        else if (isInteger(b))
+            return Long.toString(readInteger(b));
+        else if (b == 0xca || b == 0xcb)
+            return Double.toString(readFloat(b));
+        throw unexpected(b);
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        int b = nextType();
+        if (b == 0xc2 || b == 0xc3)
+            return b == 0xc3;
+        throw unexpected(b);
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if ((int) value != value)
+            throw new NumberFormatException("not an int: " + value);
+        return (int) value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        int b = nextType();
+        if (!isInteger(b))
+            throw unexpected(b);
+        return readInteger(b);
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        int b = nextType();
+        if (b == 0xca || b == 0xcb)
+            return readFloat(b);
+        else if (isInteger(b))
+            return readInteger(b);
+        throw unexpected(b);
+    }
+
+    @Override
+    public long nextTimestamp() throws IOException, ParseException {
+        // millis since the epoch, older servers may still send strings
+        if (peek() == JsonToken.STRING)
+            return Iso8601.parse(nextString());
+        return nextLong();
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        int b = nextType();
+        if (b != 0xc0)
+            throw unexpected(b);
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        skip(nextType());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int peekType() throws IOException {
+        if (peeked == NONE) {
+            peeked = readUnsignedByte();
+        }
+        return peeked;
+    }
+
+    private int nextType() throws IOException {
+        // consumes the type byte of the next value of the current container
+        if (remaining[depth] == 0)
+            throw new IOException("no more values");
+        int b = peekType();
+        peeked = NONE;
+        remaining[depth]--;
+        return b;
+    }
+
+    private void push(boolean map, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("container too large: " + size);
+        if (++depth == remaining.length) {
+            remaining = Arrays.copyOf(remaining, depth * 2);
+            isMap = Arrays.copyOf(isMap, depth * 2);
+        }
+        remaining[depth] = (int) size;
+        isMap[depth] = map;
+    }
+
+    private void pop(boolean map) throws IOException {
+        if (depth == 0 || isMap[depth] != map || remaining[depth] != 0)
+            throw new IOException("expected end of " + (map ? "object" : "array"));
+        depth--;
+    }
+
+    private void skip(int b) throws IOException {
+        // skips the rest of the value that starts with the specified type byte
+        long size;
+        if (isString(b))
+            skipBytes(stringLength(b));
+        else if (isInteger(b))
+            readInteger(b);
+        else if (b == 0xca || b == 0xcb)
+            readFloat(b);
+        else if ((size = mapSize(b)) != NONE) {
+            for (long i = 0; i < size * 2; i++)
+                skip(readUnsignedByte());
+        } else if ((size = arraySize(b)) != NONE) {
+            for (long i = 0; i < size; i++)
+                skip(readUnsignedByte());
+        } else if (b != 0xc0 && b != 0xc2 && b != 0xc3)
+            throw unexpected(b);
+    }
+
+    private String readString(int b) throws IOException {
+        long length = stringLength(b);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("string too large: " + length);
+        int n = (int) length;
+        if (n <= buf.length) {
+            // decode in place, which is the case for all names and nearly all values
+            require(n);
+            String str = new String(buf, pos, n, UTF_8);
+            pos += n;
+            return str;
+        }
+        byte[] bytes = new byte[n];
+        for (int off = 0; off < n; ) {
+            require(1);
+            int count = Math.min(n - off, limit - pos);
+            System.arraycopy(buf, pos, bytes, off, count);
+            pos += count;
+            off += count;
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private long readInteger(int b) throws IOException {
+        if (b <= 0x7f)
+            return b; // positive fixint
+        else if (b >= 0xe0)
+            return (byte) b; // negative fixint
+        switch (b) {
+            case 0xcc:
+                return readUnsignedByte();
+            case 0xcd:
+                return readUnsignedShort();
+            case 0xce:
+                return readInt() & 0xffffffffL;
+            case 0xcf:
+            case 0xd3:
+                return readLong();
+            case 0xd0:
+                return (byte) readUnsignedByte();
+            case 0xd1:
+                return (short) readUnsignedShort();
+            case 0xd2:
+                return readInt();
+            default:
+                throw unexpected(b);
+        }
+    }
+
+    private double readFloat(int b) throws IOException {
+        return b == 0xca ? Float.intBitsToFloat(readInt()) : Double.longBitsToDouble(readLong());
+    }
+
+    private long stringLength(int b) throws IOException {
+        if (b >= 0xa0 && b <= 0xbf)
+            return b & 0x1f;
+        switch (b) {
+            case 0xd9:
+                return readUnsignedByte();
+            case 0xda:
+                return readUnsignedShort();
+            default:
+                return readInt() & 0xffffffffL;
+        }
+    }
+
+    private long mapSize(int b) throws IOException {
+        // reads the size that follows the type byte of a map16 or map32
+        if (b >= 0x80 && b <= 0x8f)
+            return b & 0x0f;
+        else if (b == 0xde)
+            return readUnsignedShort();
+        else if (b == 0xdf)
+            return readInt() & 0xffffffffL;
+        return NONE;
+    }
+
+    private long arraySize(int b) throws IOException {
+        // reads the size that follows the type byte of an array16 or array32
+        if (b >= 0x90 && b <= 0x9f)
+            return b & 0x0f;
+        else if (b == 0xdc)
+            return readUnsignedShort();
+        else if (b == 0xdd)
+            return readInt() & 0xffffffffL;
+        return NONE;
+    }
+
+    private void require(int n) throws IOException {
+        // makes sure the next n bytes are in the buffer
+        if (limit - pos >= n)
+            return;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < n) {
+            int count = in.read(buf, limit, buf.length - limit);
+            if (count == -1)
+                throw new EOFException();
+            limit += count;
+        }
+    }
+
+    private int readUnsignedByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        require(2);
+        int value = (buf[pos] & 0xff) << 8 | (buf[pos + 1] & 0xff);
+        pos += 2;
+        return value;
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        int value = (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16
+                | (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return value;
+    }
+
+    private long readLong() throws IOException {
+        return (long) readInt() << 32 | (readInt() & 0xffffffffL);
+    }
+
+    private void skipBytes(long n) throws IOException {
+        while (n > 0) {
+            require(1);
+            int count = (int) Math.min(n, limit - pos);
+            pos += count;
+            n -= count;
+        }
+    }
+
+    private static boolean isString(int b) {
+        return (b >= 0xa0 && b <= 0xbf) || (b >= 0xd9 && b <= 0xdb);
+    }
+
+    private static boolean isMap(int b) {
+        return (b >= 0x80 && b <= 0x8f) || b == 0xde || b == 0xdf;
+    }
+
+    private static boolean isArray(int b) {
+        return (b >= 0x90 && b <= 0x9f) || b == 0xdc || b == 0xdd;
+    }
+
+    private static boolean isInteger(int b) {
+        return b <= 0x7f || b >= 0xe0 || (b >= 0xcc && b <= 0xd3);
+    }
+
+    private static IOException unexpected(int b) {
+        return new IOException("unexpected type 0x" + Integer.toHexString(b));
+    }
+}
@@ -0,0 +1,110 @@
+package se.walkercrou.geostream.net.response;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.util.Iso8601;
+
+/**
+ * Reads JSON responses ("application/json"). Dates are ISO 8601 strings.
+ */
+public class JsonResourceReader implements ResourceReader {
+    /**
+     * Media type of JSON responses.
+     */
+    public static final String MEDIA_TYPE = "application/json";
+
+    private static final String CHARSET = "UTF-8";
+
+    private final JsonReader reader;
+
+    public JsonResourceReader(InputStream in) throws IOException {
+        reader = new JsonReader(new InputStreamReader(in, CHARSET));
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        return reader.peek();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        reader.beginObject();
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        reader.endObject();
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        reader.beginArray();
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        reader.endArray();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return reader.hasNext();
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        return reader.nextName();
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        return reader.nextString();
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        return reader.nextBoolean();
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        return reader.nextInt();
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        return reader.nextLong();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        return reader.nextDouble();
+    }
+
+    @Override
+    public long nextTimestamp() throws IOException, ParseException {
+        return Iso8601.parse(reader.nextString());
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        reader.nextNull();
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        reader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
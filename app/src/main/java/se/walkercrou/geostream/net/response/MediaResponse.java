@@ -1,70 +1,60 @@
 package se.walkercrou.geostream.net.response;
 
-import android.content.Context;
-import android.graphics.BitmapFactory;
-
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 
-import se.walkercrou.geostream.post.Post;
+import se.walkercrou.geostream.net.MediaCache;
+import se.walkercrou.geostream.net.ProgressiveDownload;
 
 /**
- * Represents a response from the server that contains media relating to a resource.
+ * Represents a response from the server that contains media relating to a resource. The media is
+ * stored in the {@link MediaCache} as it is received and returned as a {@link File}.
  */
-public class MediaResponse extends Response<Object> {
-    private final Object media;
+public class MediaResponse extends Response<File> {
+    private final File media;
 
-    public MediaResponse(Context c, boolean video, InputStream in, int statusCode,
+    public MediaResponse(MediaCache cache, String key, long expiresAt,
+                         ProgressiveDownload download, InputStream in, int statusCode,
                          String statusMessage) {
         super(in, statusCode, statusMessage);
 
-        if (video) {
-            FileOutputStream out = null;
+        try {
+            // write input stream to cache
+            media = cache.put(key, in, expiresAt, download);
+        } catch (IOException e) {
+            throw new RuntimeException("error while downloading media : ", e);
+        } finally {
+            // close input stream
             try {
-                // create file for video
-                File file = new File(c.getExternalCacheDir(), Post.fileName(true));
-                if (!file.exists())
-                    file.createNewFile();
-
-                // write input stream to file
-                out = new FileOutputStream(file);
-                byte[] buffer = new byte[4 * 1024];
-                int n;
-                while ((n = in.read(buffer)) != -1)
-                    out.write(buffer, 0, n);
-
-                media = file;
+                in.close();
             } catch (IOException e) {
-                throw new RuntimeException("error while downloading media video : ", e);
-            } finally {
-                if (out != null)
-                    try {
-                        out.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                e.printStackTrace();
             }
-        } else
-            // not a video, decode bitmap
-            media = BitmapFactory.decodeStream(in);
-
-        // close input stream
-        try {
-            in.close();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    public MediaResponse(Context c, boolean video, HttpURLConnection conn) throws IOException {
-        this(c, video, conn.getInputStream(), conn.getResponseCode(), conn.getResponseMessage());
+    public MediaResponse(MediaCache cache, String key, long expiresAt,
+                         ProgressiveDownload download, HttpURLConnection conn)
+            throws IOException {
+        this(cache, key, expiresAt, download, openMedia(conn), conn.getResponseCode(),
+                conn.getResponseMessage());
+    }
+
+    private static InputStream openMedia(HttpURLConnection conn) throws IOException {
+        // never write an error page into the cache
+        InputStream in = openBody(conn);
+        if (isStatusError(conn.getResponseCode())) {
+            in.close();
+            throw new IOException("could not download media: " + conn.getResponseCode() + ' '
+                    + conn.getResponseMessage());
+        }
+        return in;
     }
 
     @Override
-    public Object get() {
+    public File get() {
         return media;
     }
 }
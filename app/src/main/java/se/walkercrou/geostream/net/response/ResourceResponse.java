@@ -1,90 +1,201 @@
 package se.walkercrou.geostream.net.response;
 
 import android.content.Context;
+import android.util.JsonToken;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
-import se.walkercrou.geostream.net.ErrorCallback;
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
 import se.walkercrou.geostream.util.G;
 
 /**
- * Represents a response from the server containing a single or collection of resources.
+ * Represents a response from the server containing a single or collection of resources. The
+ * response body is decoded straight from the connection's stream as it is read, with the
+ * {@link ResourceReader} matching the encoding the server chose.
  * @param <T> resource class
  */
 public class ResourceResponse<T extends Resource> extends Response<T> {
     private final List<T> results = new ArrayList<>();
-    private JSONObject obj;
-    private JSONArray array;
     private String errorDetail;
+    private String nextUrl;
+    private Map<String, List<String>> headers = Collections.emptyMap();
 
     private static final String FIELD_ERROR_DETAIL = "detail";
+    private static final String REL_NEXT = "rel=\"next\"";
 
-    public ResourceResponse(Context c, Class<T> resourceType, InputStream in, int statusCode,
-                            String statusMessage) {
+    public ResourceResponse(Context c, ResourceParser<T> parser, InputStream in,
+                            String contentType, int statusCode, String statusMessage) {
         super(in, statusCode, statusMessage);
 
-        StringBuilder builder = new StringBuilder();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-        // get "parse" static method in Resource class
-        Method parser;
+        ResourceReader reader = null;
         try {
-            parser = resourceType.getMethod("parse", Context.class, JSONObject.class);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("All classes extending Resource must implement a "
-                    + "static parse(Context, JSONObject) method.");
-        }
-
-        try {
-            // read response
-            String ln;
-            while ((ln = reader.readLine()) != null)
-                builder.append(ln).append('\n');
-
-            reader.close();
-            in.close();
-
-            // build json object and feed to parse method in resource class
-            obj = new JSONObject(builder.toString());
-            if (isError())
-                errorDetail = obj.getString(FIELD_ERROR_DETAIL);
-            else
-                results.add((T) parser.invoke(null, c, obj));
-        } catch (JSONException e) {
-            try {
-                // parse each json object within the array
-                array = new JSONArray(builder.toString());
-                for (int i = 0; i < array.length(); i++)
-                    results.add((T) parser.invoke(null, c, array.get(i)));
-            } catch (JSONException f) {
-                // ignore further json exceptions
-            } catch (Exception f) {
-                throw new RuntimeException(f);
+            reader = openReader(in, contentType);
+            // look at the first token to determine if we have a single object or a list
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                if (isError())
+                    errorDetail = readErrorDetail(reader);
+                else
+                    results.add(parser.parse(c, reader));
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                // parse each object within the array
+                reader.beginArray();
+                while (reader.hasNext())
+                    results.add(parser.parse(c, reader));
+                reader.endArray();
             }
+        } catch (EOFException e) {
+            // empty response body (e.g. a deletion), nothing to parse
         } catch (IOException e) {
             G.e("An error occurred while trying to read the server's response", e);
-        } catch (Exception e) {
+        } catch (ParseException e) {
             throw new RuntimeException(e);
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+                else
+                    in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-
     }
 
-    public ResourceResponse(Context c, Class<T> resourceType, HttpURLConnection conn)
+    public ResourceResponse(Context c, ResourceParser<T> parser, HttpURLConnection conn)
             throws IOException {
-        this(c, resourceType, conn.getInputStream(), conn.getResponseCode(),
+        this(c, parser, openBody(conn), conn.getContentType(), conn.getResponseCode(),
                 conn.getResponseMessage());
+        nextUrl = readNextUrl(conn);
+        headers = conn.getHeaderFields();
+    }
+
+    /**
+     * Creates a response for resources that have not been modified since they were last
+     * retrieved over the specified connection.
+     *
+     * @param results that were parsed from the last response
+     * @param conn    that received the not modified response
+     * @throws IOException if there is an error with the connection
+     */
+    public ResourceResponse(List<T> results, HttpURLConnection conn) throws IOException {
+        this(results, conn.getResponseCode(), conn.getResponseMessage());
+        nextUrl = readNextUrl(conn);
+        headers = conn.getHeaderFields();
+    }
+
+    /**
+     * Creates a response for a resource that has not been modified since it was last retrieved.
+     *
+     * @param results       that were parsed from the last response
+     * @param statusCode    code of response
+     * @param statusMessage message of response
+     */
+    public ResourceResponse(List<T> results, int statusCode, String statusMessage) {
+        this(results, statusCode, statusMessage, null);
+    }
+
+    /**
+     * Creates a response for resources that have already been parsed, e.g. from the result of an
+     * operation within a batch.
+     *
+     * @param results       parsed resources
+     * @param statusCode    code of response
+     * @param statusMessage message of response
+     * @param errorDetail   detail of error, null if none
+     */
+    public ResourceResponse(List<T> results, int statusCode, String statusMessage,
+                            String errorDetail) {
+        super(null, statusCode, statusMessage);
+        this.results.addAll(results);
+        this.errorDetail = errorDetail;
+    }
+
+    /**
+     * Returns true if the server reported that the resources have not changed since they were
+     * last retrieved, in which case the results are the previously parsed resources.
+     *
+     * @return true if not modified
+     */
+    public boolean isNotModified() {
+        return statusCode == STATUS_NOT_MODIFIED;
+    }
+
+    private static String readNextUrl(HttpURLConnection conn) {
+        // e.g. 'Link: <http://example.com/api/posts/?cursor=cD0yMDE1>; rel="next"'
+        String link = conn.getHeaderField("Link");
+        if (link == null)
+            return null;
+        for (String part : link.split(",")) {
+            int start = part.indexOf('<'), end = part.indexOf('>');
+            if (part.contains(REL_NEXT) && start != -1 && end > start)
+                return part.substring(start + 1, end);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a reader for the specified response body in the encoding of the specified content
+     * type. Anything that is not the binary encoding is read as JSON, e.g. error pages of older
+     * servers.
+     *
+     * @param in          response body
+     * @param contentType of response, may be null
+     * @return reader for body
+     * @throws IOException if the reader could not be created
+     */
+    public static ResourceReader openReader(InputStream in, String contentType)
+            throws IOException {
+        if (contentType != null && contentType.startsWith(BinaryResourceReader.MEDIA_TYPE))
+            return new BinaryResourceReader(in);
+        return new JsonResourceReader(in);
+    }
+
+    static String readErrorDetail(ResourceReader reader) throws IOException {
+        String detail = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(FIELD_ERROR_DETAIL) && reader.peek() == JsonToken.STRING)
+                detail = reader.nextString();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return detail;
+    }
+
+    /**
+     * Returns the URL of the next page of results if the results are paginated.
+     *
+     * @return url of next page, null if this is the last page
+     */
+    public String getNextUrl() {
+        return nextUrl;
+    }
+
+    /**
+     * Returns the value of the specified response header.
+     *
+     * @param name of header, case insensitive
+     * @return value of header, null if not present
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            List<String> values = header.getValue();
+            if (name.equalsIgnoreCase(header.getKey()) && !values.isEmpty())
+                return values.get(values.size() - 1);
+        }
+        return null;
     }
 
     /**
@@ -108,11 +219,9 @@ public class ResourceResponse<T extends Resource> extends Response<T> {
 
     @Override
     public String toString() {
-        try {
-            return obj != null ? obj.toString(4)
-                    : array != null ? array.toString(4) : super.toString();
-        } catch (JSONException e) {
-            return super.toString();
-        }
+        return getClass().getSimpleName() + "{status=" + statusCode
+                + (isNotModified() ? " (not modified)" : "") + ", results="
+                + results.size() + (errorDetail != null ? ", detail=\"" + errorDetail + '"' : "")
+                + '}';
     }
 }
@@ -1,9 +1,13 @@
 package se.walkercrou.geostream.net.response;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
 
+import se.walkercrou.geostream.net.ConnectionStats;
 import se.walkercrou.geostream.net.ErrorCallback;
 
 /**
@@ -18,8 +22,17 @@ public abstract class Response<T> {
 
     // HTTP status codes
     public static final int STATUS_OK = 200;
+    public static final int STATUS_NOT_MODIFIED = 304;
+    public static final int STATUS_NOT_FOUND = 404;
     public static final int FIRST_ERROR_STATUS = 300;
 
+    /**
+     * The most bytes that will be skipped when a body is closed before it has been read to the
+     * end. Beyond that it is cheaper to drop the socket than to read the rest.
+     */
+    public static final int MAX_DRAIN = 64 * 1024;
+    private static final int BUFFER_SIZE = 4 * 1024;
+
     /**
      * Creates a new Response with the given HTTP InputStream and status code and message
      *
@@ -40,7 +53,34 @@ public abstract class Response<T> {
      * @throws IOException if there is an error with the connection
      */
     public Response(HttpURLConnection conn) throws IOException {
-        this(conn.getInputStream(), conn.getResponseCode(), conn.getResponseMessage());
+        this(openBody(conn), conn.getResponseCode(), conn.getResponseMessage());
+    }
+
+    /**
+     * Returns the body of the specified connection's response, or the error body if the response
+     * has an error status. Gzip encoded bodies are decoded. Closing the returned stream reads the
+     * remainder of the body so that the connection's socket can be reused for the next request.
+     *
+     * @param conn to read from
+     * @return body of response
+     * @throws IOException if the connection failed
+     */
+    public static InputStream openBody(HttpURLConnection conn) throws IOException {
+        InputStream in = isStatusError(conn.getResponseCode()) ? conn.getErrorStream()
+                : conn.getInputStream();
+        if (in == null)
+            in = new ByteArrayInputStream(new byte[0]); // no body, e.g. an empty error response
+
+        in = new ReleasingInputStream(in);
+        if (conn.getContentLength() != 0 && "gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            try {
+                in = new GZIPInputStream(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+        return in;
     }
 
     /**
@@ -84,7 +124,7 @@ public abstract class Response<T> {
      * @return true if error
      */
     public static boolean isStatusError(int code) {
-        return code < STATUS_OK || code >= FIRST_ERROR_STATUS;
+        return code < STATUS_OK || (code >= FIRST_ERROR_STATUS && code != STATUS_NOT_MODIFIED);
     }
 
     /**
@@ -105,4 +145,36 @@ public abstract class Response<T> {
         }
         return true;
     }
+
+    /**
+     * Reads the rest of the wrapped stream when closed so that the connection it came from can
+     * be returned to the connection pool instead of being closed.
+     */
+    private static class ReleasingInputStream extends FilterInputStream {
+        private boolean closed;
+
+        private ReleasingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            boolean drained = false;
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int skipped = 0, n;
+                while (skipped <= MAX_DRAIN && (n = in.read(buffer)) != -1)
+                    skipped += n;
+                drained = skipped <= MAX_DRAIN;
+            } catch (IOException e) {
+                // the connection is broken anyway
+            } finally {
+                ConnectionStats.onRelease(drained);
+                in.close();
+            }
+        }
+    }
 }
@@ -4,17 +4,17 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import se.walkercrou.geostream.net.ErrorCallback;
 import se.walkercrou.geostream.net.Resource;
-import se.walkercrou.geostream.net.request.ResourceCreateRequest;
-import se.walkercrou.geostream.net.request.ResourceDeleteRequest;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.request.BatchRequest;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 import se.walkercrou.geostream.net.response.Response;
 import se.walkercrou.geostream.util.G;
@@ -31,6 +31,11 @@ public class Comment extends Resource implements Parcelable {
      * String: The actual content of the comment.
      */
     public static final String PARAM_CONTENT = "content";
+    /**
+     * Integer: Only list comments created after the comment with this ID. Used as a filter when
+     * listing comments.
+     */
+    public static final String PARAM_SINCE = "since";
     /**
      * String: Client secret for modifying comment in the future
      */
@@ -41,9 +46,14 @@ public class Comment extends Resource implements Parcelable {
      */
     public static final String TYPE_NAME = "CMT";
 
+    /**
+     * Reads Comments from server responses.
+     */
+    public static final ResourceParser<Comment> PARSER = Comment::parse;
+
     private final String content;
 
-    private Comment(int id, String content, Date created) {
+    private Comment(int id, String content, long created) {
         super(id, TYPE_NAME, created);
         this.content = content;
     }
@@ -63,7 +73,7 @@ public class Comment extends Resource implements Parcelable {
      * @param hidden true if should hide
      */
     public void setHidden(boolean hidden) {
-        G.app.hiddenComments.edit().putBoolean(Integer.toString(id), hidden).commit();
+        G.app.localState.setCommentHidden(id, hidden);
     }
 
     /**
@@ -72,7 +82,7 @@ public class Comment extends Resource implements Parcelable {
      * @return true if hidden
      */
     public boolean isHidden() {
-        return G.app.hiddenComments.getBoolean(Integer.toString(id), false);
+        return G.app.localState.isCommentHidden(id);
     }
 
     /**
@@ -81,12 +91,12 @@ public class Comment extends Resource implements Parcelable {
      *
      * @param c context
      * @param reason for report
-     * @param callback in case of error
-     * @return newly created flag
-     * @throws IOException
+     * @param callback notified on the main thread when the flag has been created, may be null
+     * @throws IOException if the request could not be written to disk
      */
-    public Flag flag(Context c, Flag.Reason reason, ErrorCallback callback) throws IOException {
-        return Flag.create(c, this, reason, callback);
+    public void flag(Context c, Flag.Reason reason,
+                     ResponseCallback<ResourceResponse<Flag>> callback) throws IOException {
+        Flag.create(c, this, reason, callback);
     }
 
     /**
@@ -100,54 +110,76 @@ public class Comment extends Resource implements Parcelable {
      */
     public boolean delete(Context c, String clientSecret, ErrorCallback callback)
             throws IOException {
-        ResourceDeleteRequest<Comment> request = new ResourceDeleteRequest<>(c, Comment.class,
-                Resource.COMMENTS, id, clientSecret);
-        ResourceResponse<Comment> response = request.sendInBackground();
+        ResourceResponse<Comment> response = BatchRequest.delete(c, PARSER, Resource.COMMENTS, id,
+                clientSecret, null).await();
         return Response.check(response, callback);
     }
 
     /**
-     * Creates a new Comment for the specified Post. This method is protected for consistency. Use
-     * {@link Post#comment(Context, String, ErrorCallback)} instead.
+     * Queues a new Comment for the specified Post in the {@link Outbox}. This method is protected
+     * for consistency. Use {@link Post#comment(Context, String, ResponseCallback)} instead.
      *
      * @param post to comment on
      * @param content of comment
-     * @param callback error callback
-     * @return newly created comment
-     * @see Post#comment(Context, String, ErrorCallback)
+     * @param callback notified on the main thread when created, may be null
+     * @throws IOException if the request could not be written to disk
+     * @see Post#comment(Context, String, ResponseCallback)
      */
-    protected static Comment create(Context c, Post post, String content, ErrorCallback callback)
+    protected static void create(Context c, Post post, String content,
+                                 ResponseCallback<ResourceResponse<Comment>> callback)
             throws IOException {
-        ResourceCreateRequest<Comment> request
-                = new ResourceCreateRequest<>(c, Comment.class, Resource.COMMENTS);
-        request.set(PARAM_POST, post.getId()).set(PARAM_CONTENT, content);
-        ResourceResponse<Comment> response = request.sendInBackground();
-        if (!Response.check(response, callback))
-            return null;
-
-        // create comment and add it to the post
-        Comment comment = response.get();
-        post.comments.add(comment);
-        return comment;
+        Map<String, Object> params = new HashMap<>();
+        params.put(PARAM_POST, post.getId());
+        params.put(PARAM_CONTENT, content);
+        Post.outbox(c).enqueue(Resource.COMMENTS, params, (ResourceResponse<Comment> response) -> {
+            // add the comment to the post once created
+            if (response != null && !response.isError())
+                post.addLocalComment(response.get());
+            if (callback != null)
+                callback.onResponse(response);
+        });
     }
 
     /**
-     * Creates a new Comment from the specified {@link JSONObject}.
+     * Reads a new Comment from the specified {@link ResourceReader}, which must be positioned at
+     * the beginning of the comment's object.
      *
-     * @param obj to parse
+     * @param in to read from
      * @return new comment
-     * @throws JSONException if error with json
+     * @throws IOException if the response could not be read
+     * @throws ParseException if the creation date is malformed
      */
-    public static Comment parse(Context c, JSONObject obj) throws JSONException, ParseException {
-        int id = obj.getInt(PARAM_ID);
+    public static Comment parse(Context c, ResourceReader in) throws IOException, ParseException {
+        int id = 0;
+        String content = null;
+        long created = 0;
+        String clientSecret = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case PARAM_ID:
+                    id = in.nextInt();
+                    break;
+                case PARAM_CONTENT:
+                    content = in.nextString();
+                    break;
+                case PARAM_CREATED:
+                    created = in.nextTimestamp();
+                    break;
+                case PARAM_CLIENT_SECRET:
+                    clientSecret = nextStringOrNull(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
 
         // check for client secret and save if present
-        String clientSecret = obj.optString(PARAM_CLIENT_SECRET, null);
         if (clientSecret != null)
-            G.app.commentSecrets.edit().putString(Integer.toString(id), clientSecret).commit();
+            G.app.localState.putCommentSecret(id, clientSecret);
 
-        return new Comment(id, obj.getString(PARAM_CONTENT),
-                G.parseDateString(obj.getString(PARAM_CREATED)));
+        return new Comment(id, content, created);
     }
 
     @Override
@@ -162,7 +194,7 @@ public class Comment extends Resource implements Parcelable {
      * Order:
      * 1. Integer: ID
      * 2. String: Content
-     * 3. String: Creation date
+     * 3. Long: Creation time
      */
 
     public static Parcelable.Creator<Comment> CREATOR = new Creator<Comment>() {
@@ -170,15 +202,8 @@ public class Comment extends Resource implements Parcelable {
         public Comment createFromParcel(Parcel source) {
             int id = source.readInt();
             String content = source.readString();
-
-            Date date;
-            try {
-                date = G.STANDARD_DATE_FORMAT.parse(source.readString());
-            } catch (ParseException e) {
-                throw new RuntimeException(e);
-            }
-
-            return new Comment(id, content, date);
+            long created = source.readLong();
+            return new Comment(id, content, created);
         }
 
         @Override
@@ -196,7 +221,7 @@ public class Comment extends Resource implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(id);
         dest.writeString(content);
-        dest.writeString(G.STANDARD_DATE_FORMAT.format(created));
+        dest.writeLong(created);
     }
 
     // -------------------------------
@@ -2,21 +2,16 @@ package se.walkercrou.geostream.post;
 
 import android.content.Context;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
-import se.walkercrou.geostream.net.ErrorCallback;
 import se.walkercrou.geostream.net.Resource;
-import se.walkercrou.geostream.net.request.ResourceCreateRequest;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.net.ResponseCallback;
 import se.walkercrou.geostream.net.response.ResourceResponse;
-import se.walkercrou.geostream.net.response.Response;
-import se.walkercrou.geostream.util.G;
 
 /**
  * Represents a "report flag" for a given Post. These flags are sent to the server to be reviewed
@@ -42,9 +37,14 @@ public class Flag extends Resource {
      */
     public static final String TYPE_NAME = "FLG";
 
+    /**
+     * Reads Flags from server responses.
+     */
+    public static final ResourceParser<Flag> PARSER = Flag::parse;
+
     private final Reason reason;
 
-    private Flag(int id, Reason reason, Date created) {
+    private Flag(int id, Reason reason, long created) {
         super(id, TYPE_NAME, created);
         this.reason = reason;
     }
@@ -59,40 +59,57 @@ public class Flag extends Resource {
     }
 
     /**
-     * Creates a new flag for the specified {@link Resource} and sends it to the server for review.
-     * This method is protected for consistency.
+     * Queues a new flag for the specified {@link Resource} in the outbox to be sent to the server
+     * for review. This method is protected for consistency.
      *
      * @param c context
      * @param resource to flag
      * @param reason for flagging
-     * @param callback in case of error
-     * @return flag
-     * @throws IOException
+     * @param callback notified on the main thread when created, may be null
+     * @throws IOException if the request could not be written to disk
      */
-    protected static Flag create(Context c, Resource resource, Reason reason,
-                                 ErrorCallback callback) throws IOException {
-        ResourceCreateRequest<Flag> request
-                = new ResourceCreateRequest<>(c, Flag.class, Resource.FLAGS);
-        request.set(PARAM_RESOURCE_TYPE, resource.getTypeName())
-                .set(PARAM_RESOURCE_ID, resource.getId())
-                .set(PARAM_REASON, reason);
-        ResourceResponse<Flag> response = request.sendInBackground();
-        if (!Response.check(response, callback))
-            return null;
-        return response.get();
+    protected static void create(Context c, Resource resource, Reason reason,
+                                 ResponseCallback<ResourceResponse<Flag>> callback)
+            throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put(PARAM_RESOURCE_TYPE, resource.getTypeName());
+        params.put(PARAM_RESOURCE_ID, resource.getId());
+        params.put(PARAM_REASON, reason);
+        Post.outbox(c).enqueue(Resource.FLAGS, params, callback);
     }
 
     /**
-     * Creates a new Flag from the specified {@link JSONObject}.
+     * Reads a new Flag from the specified {@link ResourceReader}, which must be positioned at
+     * the beginning of the flag's object.
      *
      * @param c context
-     * @param json to parse
-     * @return flag from json
-     * @throws JSONException
+     * @param in to read from
+     * @return flag from response
+     * @throws IOException if the response could not be read
+     * @throws ParseException if the creation date is malformed
      */
-    public static Flag parse(Context c, JSONObject json) throws JSONException, ParseException {
-        return new Flag(json.getInt(PARAM_ID), Reason.nameMap.get(json.getString(PARAM_REASON)),
-                G.parseDateString(json.getString(PARAM_CREATED)));
+    public static Flag parse(Context c, ResourceReader in) throws IOException, ParseException {
+        int id = 0;
+        Reason reason = null;
+        long created = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case PARAM_ID:
+                    id = in.nextInt();
+                    break;
+                case PARAM_REASON:
+                    reason = Reason.nameMap.get(in.nextString());
+                    break;
+                case PARAM_CREATED:
+                    created = in.nextTimestamp();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Flag(id, reason, created);
     }
 
     /**
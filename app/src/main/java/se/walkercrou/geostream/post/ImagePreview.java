@@ -0,0 +1,45 @@
+package se.walkercrou.geostream.post;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * Represents an image view within a {@link PostDetailActivity}. The image is rotated and scaled
+ * to fit the view when drawn so that no rotated copy of the bitmap needs to be created.
+ */
+public class ImagePreview extends View {
+    private final Bitmap bmp;
+    private final int rotation; // clockwise degrees
+    private final Matrix matrix = new Matrix();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public ImagePreview(Context context, Bitmap bmp, int rotation) {
+        super(context);
+        this.bmp = bmp;
+        this.rotation = rotation;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        int bw = bmp.getWidth();
+        int bh = bmp.getHeight();
+        boolean sideways = rotation == 90 || rotation == 270;
+        float scale = Math.min((float) w / (sideways ? bh : bw), (float) h / (sideways ? bw : bh));
+
+        // rotate around the center of the bitmap, then scale and center within the view
+        matrix.setTranslate(-bw / 2f, -bh / 2f);
+        matrix.postRotate(rotation);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(w / 2f, h / 2f);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.drawBitmap(bmp, matrix, paint);
+    }
+}
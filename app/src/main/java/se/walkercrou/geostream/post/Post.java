@@ -6,28 +6,39 @@ import android.location.Location;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import se.walkercrou.geostream.net.ErrorCallback;
+import se.walkercrou.geostream.net.MediaCache;
+import se.walkercrou.geostream.net.ProgressiveDownload;
 import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.StreamingProxy;
+import se.walkercrou.geostream.net.request.BatchRequest;
 import se.walkercrou.geostream.net.request.MediaRequest;
-import se.walkercrou.geostream.net.request.ResourceCreateRequest;
+import se.walkercrou.geostream.net.request.Outbox;
 import se.walkercrou.geostream.net.request.ResourceCreateRequest.MediaData;
-import se.walkercrou.geostream.net.request.ResourceDeleteRequest;
 import se.walkercrou.geostream.net.request.ResourceDetailRequest;
 import se.walkercrou.geostream.net.request.ResourceListRequest;
+import se.walkercrou.geostream.net.request.ResourcePager;
 import se.walkercrou.geostream.net.response.MediaResponse;
 import se.walkercrou.geostream.net.response.ResourceResponse;
 import se.walkercrou.geostream.net.response.Response;
+import se.walkercrou.geostream.util.BitmapDecoder;
+import se.walkercrou.geostream.util.DecodedImage;
 import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.RankedList;
 
 /**
  * Represents a Post that a user has created with a location and an image or video.
@@ -73,11 +84,51 @@ public class Post extends Resource implements Parcelable {
      * The upper latitude coordinate for retrieving posts within a range.
      */
     public static final String PARAM_TO_LNG = "toLng";
+    /**
+     * Integer: The zoom level of the tiles to retrieve posts within.
+     */
+    public static final String PARAM_ZOOM = "zoom";
+    /**
+     * String: Comma separated "x:y" coordinates of the tiles to retrieve posts within.
+     */
+    public static final String PARAM_TILES = "tiles";
+    /**
+     * Integer: The most posts to retrieve within a range, or within each tile.
+     */
+    public static final String PARAM_LIMIT = "limit";
+    /**
+     * String: What to rank posts by when more than the limit are within a range, either
+     * {@link #ORDER_RECENT} or {@link #ORDER_ACTIVE}.
+     */
+    public static final String PARAM_ORDER = "order";
+
+    /**
+     * Ranks the newest posts first.
+     */
+    public static final String ORDER_RECENT = "recent";
+    /**
+     * Ranks the posts with the most comments first.
+     */
+    public static final String ORDER_ACTIVE = "active";
+
+    /**
+     * Response header with the amount of posts in a range that were left out.
+     */
+    public static final String HEADER_OVERFLOW_COUNT = "X-Overflow-Count";
+    /**
+     * Response header with the amount of posts that were left out of each tile, e.g.
+     * "70406:42988=12,70407:42988=3".
+     */
+    public static final String HEADER_TILE_OVERFLOW_COUNTS = "X-Tile-Overflow-Counts";
 
     /**
      * API method that retrieve posts within a specified range.
      */
     public static final String METHOD_RANGE = "range";
+    /**
+     * API method that retrieves posts within a set of map tiles.
+     */
+    public static final String METHOD_TILES = "tiles";
 
     /**
      * What we tell the server to name the file. Absolutely arbitrary. May also be renamed by the
@@ -98,14 +149,23 @@ public class Post extends Resource implements Parcelable {
      */
     public static final String TYPE_NAME = "PST";
 
+    /**
+     * Reads Posts from server responses.
+     */
+    public static final ResourceParser<Post> PARSER = Post::parse;
+
     private final Location location;
     private final String fileUrl;
-    protected List<Comment> comments = new ArrayList<>();
+    private final int lifetime;
+    // replaced rather than modified so that it can be read on any thread, see insertComments()
+    private volatile List<Comment> comments = Collections.emptyList();
+    private int commentCursor; // id of the newest comment received from the server
 
-    private Post(int id, Location location, String fileUrl, Date created) {
+    private Post(int id, Location location, String fileUrl, int lifetime, long created) {
         super(id, TYPE_NAME, created);
         this.location = location;
         this.fileUrl = fileUrl;
+        this.lifetime = lifetime;
     }
 
     /**
@@ -128,7 +188,26 @@ public class Post extends Resource implements Parcelable {
     }
 
     /**
-     * Returns the Comments in this Post.
+     * Returns the amount of hours this Post is available for after it's creation.
+     *
+     * @return lifetime in hours
+     */
+    public int getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Returns the {@link Date} after which this Post is no longer available.
+     *
+     * @return date of expiration
+     */
+    public Date getExpirationDate() {
+        return new Date(created + lifetime * 60L * 60 * 1000);
+    }
+
+    /**
+     * Returns the Comments in this Post. The list is an unmodifiable snapshot, comments that are
+     * received later replace it rather than change it, so it can be iterated on any thread.
      *
      * @return post comments
      */
@@ -142,7 +221,7 @@ public class Post extends Resource implements Parcelable {
      * @return true if hidden
      */
     public boolean isHidden() {
-        return G.app.hiddenPosts.getBoolean(Integer.toString(id), false);
+        return G.app.localState.isPostHidden(id);
     }
 
     /**
@@ -151,30 +230,33 @@ public class Post extends Resource implements Parcelable {
      * @param hidden true if should hide
      */
     public void setHidden(boolean hidden) {
-        G.app.hiddenPosts.edit().putBoolean(Integer.toString(id), hidden).commit();
+        G.app.localState.setPostHidden(id, hidden, getExpirationDate().getTime());
     }
 
     /**
-     * Starts this Post's detail activity from the specified context.
+     * Starts this Post's detail activity from the specified context. Only the id of this post is
+     * passed, the activity gets this instance from the {@link PostRepository}.
      *
      * @param c context to start from
      */
     public void startActivity(Context c) {
         Intent intent = new Intent(c, PostDetailActivity.class);
-        intent.putExtra(PostDetailActivity.EXTRA_POST, this);
+        intent.putExtra(PostDetailActivity.EXTRA_POST_ID, PostRepository.intern(this).id);
         c.startActivity(intent);
     }
 
     /**
-     * Creates a new comment on this post.
+     * Queues a new comment on this post in the {@link Outbox}. The comment is added to this post
+     * once it has been created.
      *
      * @param c context
      * @param content to comment
-     * @param callback in case of error
-     * @return comment
+     * @param callback notified on the main thread when the comment has been created, may be null
+     * @throws IOException if the request could not be written to disk
      */
-    public Comment comment(Context c, String content, ErrorCallback callback) throws IOException {
-        return Comment.create(c, this, content, callback);
+    public void comment(Context c, String content,
+                        ResponseCallback<ResourceResponse<Comment>> callback) throws IOException {
+        Comment.create(c, this, content, callback);
     }
 
     /**
@@ -182,40 +264,132 @@ public class Post extends Resource implements Parcelable {
      *
      * @param c context
      * @param reason for flagging
-     * @param callback in case of error
-     * @return flag
-     * @throws IOException
+     * @param callback notified on the main thread when the flag has been created, may be null
+     * @throws IOException if the request could not be written to disk
      */
-    public Flag flag(Context c, Flag.Reason reason, ErrorCallback callback) throws IOException {
-        return Flag.create(c, this, reason, callback);
+    public void flag(Context c, Flag.Reason reason,
+                     ResponseCallback<ResourceResponse<Flag>> callback) throws IOException {
+        Flag.create(c, this, reason, callback);
     }
 
     /**
-     * Downloads and returns the post's media from the server.
+     * Returns the post's media from the {@link MediaCache}, downloading it from the server if it
+     * is not cached. Images are decoded to fit within the specified size. Videos that are not
+     * cached are streamed through the {@link StreamingProxy} while they are written to the cache so
+     * that playback can start before the download completes.
      *
      * @param c context
+     * @param reqWidth width the media will be displayed at
+     * @param reqHeight height the media will be displayed at
      * @param callback in case of error
-     * @return media object
+     * @return media object, either a {@link DecodedImage}, a video File or a String URL to stream
+     * the video from
      * @throws IOException
      */
-    public Object getMediaObject(Context c, ErrorCallback callback) throws IOException {
-        MediaResponse response = new MediaRequest(c, fileUrl).sendInBackground();
-        Response.check(response, callback);
-        return response.get();
+    public Object getMediaObject(Context c, int reqWidth, int reqHeight, ErrorCallback callback)
+            throws IOException {
+        MediaCache cache = MediaCache.get(c);
+        cache.evictExpired();
+        try {
+            // check memory first, then disk
+            DecodedImage image = cache.getImage(fileUrl);
+            if (image != null)
+                return image;
+            File file = cache.getFile(fileUrl);
+            if (file == null && isVideo())
+                return streamVideo(c, callback);
+            if (file == null) {
+                // not cached, download
+                MediaResponse response = new MediaRequest(c, fileUrl,
+                        getExpirationDate().getTime()).sendInBackground();
+                if (!Response.check(response, callback))
+                    return null;
+                file = response.get();
+            }
+            if (isVideo())
+                return file;
+
+            image = BitmapDecoder.decode(file, reqWidth, reqHeight);
+            cache.putImage(fileUrl, image);
+            return image;
+        } finally {
+            G.d(cache);
+        }
+    }
+
+    private String streamVideo(Context c, ErrorCallback callback) throws IOException {
+        // download into the cache in the background and play from the proxy as bytes arrive
+        ProgressiveDownload download = new ProgressiveDownload();
+        String url = StreamingProxy.register(download);
+        new MediaRequest(c, fileUrl, getExpirationDate().getTime())
+                .setProgressiveDownload(download)
+                .enqueue(response -> Response.check(response, callback));
+        return url;
+    }
+
+    /**
+     * Returns true if this post's media is a video.
+     *
+     * @return true if video
+     */
+    public boolean isVideo() {
+        return isVideoUrl(fileUrl);
     }
 
     /**
-     * Retrieves new comments from the server
+     * Retrieves the comments that have been made since the newest comment received from the
+     * server and merges them into the comments of this post.
      *
      * @param callback in case of error
      */
     public void refreshComments(Context c, ErrorCallback callback) throws IOException {
-        ResourceDetailRequest<Post> request
-                = new ResourceDetailRequest<>(c, Post.class, Resource.POSTS, id);
-        ResourceResponse<Post> response = request.sendInBackground();
-        if (!Response.check(response, callback))
+        ResourceListRequest<Comment> request
+                = new ResourceListRequest<>(c, Comment.PARSER, Resource.COMMENTS)
+                .set(Comment.PARAM_POST, id);
+        if (commentCursor != 0)
+            request.set(Comment.PARAM_SINCE, commentCursor);
+        ResourcePager<Comment> pages = new ResourcePager<>(c, Comment.PARSER, request);
+        while (pages.hasNext()) {
+            ResourceResponse<Comment> response = pages.nextPage();
+            if (!Response.check(response, callback))
+                return;
+            mergeComments(response.getList());
+        }
+    }
+
+    synchronized void mergeComments(List<Comment> newComments) {
+        // received from the server, so later refreshes only need the comments after these
+        insertComments(newComments);
+        for (Comment comment : newComments)
+            commentCursor = Math.max(commentCursor, comment.getId());
+    }
+
+    synchronized void addLocalComment(Comment comment) {
+        // created from this device, the cursor is left alone because comments made by others
+        // since the last refresh have lower ids and must still be retrieved
+        insertComments(Collections.singletonList(comment));
+    }
+
+    private void insertComments(List<Comment> newComments) {
+        // called on the threads that parse posts, so merge into a copy and swap it in
+        if (newComments.isEmpty())
             return;
-        this.comments = response.get().comments;
+        List<Comment> merged = new ArrayList<>(comments);
+        // comments are ordered by id, new comments usually belong at the end so search from there
+        for (Comment comment : newComments) {
+            int i = merged.size();
+            while (i > 0 && merged.get(i - 1).getId() > comment.getId())
+                i--;
+            if (i == 0 || merged.get(i - 1).getId() != comment.getId())
+                merged.add(i, comment);
+        }
+        comments = Collections.unmodifiableList(merged);
+    }
+
+    synchronized void removeComment(Comment comment) {
+        List<Comment> remaining = new ArrayList<>(comments);
+        if (remaining.remove(comment))
+            comments = Collections.unmodifiableList(remaining);
     }
 
     /**
@@ -223,104 +397,191 @@ public class Post extends Resource implements Parcelable {
      */
     public boolean delete(Context c, String clientSecret, ErrorCallback callback)
             throws IOException {
-        ResourceDeleteRequest<Post> request
-                = new ResourceDeleteRequest<>(c, Post.class, Resource.POSTS, id, clientSecret);
-        ResourceResponse<Post> response = request.sendInBackground();
-        return Response.check(response, callback);
-
+        ResourceResponse<Post> response = BatchRequest.delete(c, PARSER, Resource.POSTS, id,
+                clientSecret, null).await();
+        if (!Response.check(response, callback))
+            return false;
+        PostRepository.remove(id);
+        return true;
     }
 
     /**
-     * Creates and returns a new Post object and sends a creation request to the server.
+     * Queues a request to create a new Post in the {@link Outbox}. The media file is moved into
+     * the outbox and the post is created in the background, surviving a lost connection or the
+     * app being closed.
      *
      * @param location of post
      * @param data     media data
-     * @param callback error callback
-     * @return new post object
-     */
-    public static Post create(Context c, Location location, int lifetime, MediaData data,
-                              ErrorCallback callback) throws IOException {
-        ResourceCreateRequest<Post> request
-                = new ResourceCreateRequest<>(c, Post.class, Resource.POSTS);
-        request.set(PARAM_LAT, location.getLatitude())
-                .set(PARAM_LNG, location.getLongitude())
-                .set(PARAM_LIFETIME, lifetime)
-                .set(PARAM_MEDIA_FILE, data);
-        ResourceResponse<Post> response = request.sendInBackground();
-        if (!Response.check(response, callback))
-            return null;
-        return response.get();
+     * @param callback notified on the main thread when the post has been created, with a null
+     *                 response if the outbox gave up on it, may be null
+     * @throws IOException if the request could not be written to disk
+     */
+    public static void create(Context c, Location location, int lifetime, MediaData data,
+                              ResponseCallback<ResourceResponse<Post>> callback)
+            throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put(PARAM_LAT, location.getLatitude());
+        params.put(PARAM_LNG, location.getLongitude());
+        params.put(PARAM_LIFETIME, lifetime);
+        params.put(PARAM_MEDIA_FILE, data);
+        outbox(c).enqueue(Resource.POSTS, params, callback);
+    }
+
+    /**
+     * Retrieves the post with the specified id in the background.
+     *
+     * @param c        context
+     * @param id       of post
+     * @param callback notified on the main thread with the post
+     * @return future response
+     */
+    public static Future<ResourceResponse<Post>> load(Context c, int id,
+                                                      ResponseCallback<ResourceResponse<Post>>
+                                                              callback) {
+        return new ResourceDetailRequest<>(c, PARSER, Resource.POSTS, id).enqueue(callback);
     }
 
     /**
-     * Returns a list of Posts within the specified range.
+     * Returns the {@link Outbox} with the parsers for posts, comments and flags registered. Calling
+     * this when the app starts resumes sending the requests left over from the last run.
+     *
+     * @param c context
+     * @return outbox
+     */
+    public static Outbox outbox(Context c) {
+        return Outbox.get(c)
+                .register(Resource.POSTS, Post.PARSER)
+                .register(Resource.COMMENTS, Comment.PARSER)
+                .register(Resource.FLAGS, Flag.PARSER);
+    }
+
+    /**
+     * Returns the top Posts within the specified range along with the amount of posts in the
+     * range that were left out.
      *
      * @param c context
      * @param fromLat lower latitude
      * @param toLat upper latitude
      * @param fromLng lower longitude
      * @param toLng upper longitude
+     * @param limit most posts to return
+     * @param order to rank posts by, {@link #ORDER_RECENT} or {@link #ORDER_ACTIVE}
      * @param callback in case of error
-     * @return list of posts within range
+     * @return top posts within range
      * @throws IOException
      */
-    public static List<Post> range(Context c, double fromLat, double toLat, double fromLng,
-                                   double toLng, ErrorCallback callback) throws IOException {
+    public static RankedList<Post> range(Context c, double fromLat, double toLat, double fromLng,
+                                         double toLng, int limit, String order,
+                                         ErrorCallback callback) throws IOException {
         ResourceListRequest<Post> request
-                = new ResourceListRequest<>(c, Post.class, Resource.POSTS, METHOD_RANGE);
+                = new ResourceListRequest<>(c, Post.PARSER, Resource.POSTS, METHOD_RANGE);
         request.set(PARAM_FROM_LAT, fromLat)
                 .set(PARAM_TO_LAT, toLat)
                 .set(PARAM_FROM_LNG, fromLng)
-                .set(PARAM_TO_LNG, toLng);
+                .set(PARAM_TO_LNG, toLng)
+                .set(PARAM_LIMIT, limit)
+                .set(PARAM_ORDER, order);
         ResourceResponse<Post> response = request.sendInBackground();
         if (!Response.check(response, callback))
             return null;
-        return response.getList();
+
+        int overflow = 0;
+        String header = response.getHeader(HEADER_OVERFLOW_COUNT);
+        if (header != null) {
+            try {
+                overflow = Integer.parseInt(header.trim());
+            } catch (NumberFormatException e) {
+                G.e("malformed overflow count: " + header);
+            }
+        }
+        return new RankedList<>(response.getList(), overflow);
     }
 
     /**
-     * Returns a list of all Posts on the server.
+     * Returns the pages of all Posts on the server. The first page is requested right away.
      *
-     * @param callback error callback
-     * @return list of all posts
+     * @param c context
+     * @return pages of all posts
      */
-    public static List<Post> all(Context c, ErrorCallback callback) throws IOException {
-        ResourceResponse<Post> response = new ResourceListRequest<>(c, Post.class, Resource.POSTS)
-                .sendInBackground();
-        if (!Response.check(response, callback))
-            return null;
-        return response.getList();
+    public static ResourcePager<Post> all(Context c) {
+        return new ResourcePager<>(c, Post.PARSER,
+                new ResourceListRequest<>(c, Post.PARSER, Resource.POSTS));
     }
 
     /**
-     * Creates a new Post from the specified {@link JSONObject}.
+     * Reads a new Post from the specified {@link ResourceReader}, which must be positioned at
+     * the beginning of the post's object.
      *
-     * @param obj to parse
+     * @param in to read from
      * @return new Post
-     * @throws JSONException if error with JSONObject
+     * @throws IOException if the response could not be read
+     * @throws ParseException if the creation date is malformed
      */
-    public static Post parse(Context c, JSONObject obj) throws JSONException, ParseException {
-        // build post from object
-        int id = obj.getInt(PARAM_ID);
+    public static Post parse(Context c, ResourceReader in) throws IOException, ParseException {
+        // read post fields from object
+        int id = 0;
         Location loc = new Location(G.app.name);
-        loc.setLatitude(obj.getDouble(PARAM_LAT));
-        loc.setLongitude(obj.getDouble(PARAM_LNG));
-        String fileUrl = obj.getString(PARAM_MEDIA_FILE);
-        Date created = G.parseDateString(obj.getString(PARAM_CREATED));
-        Post post = new Post(id, loc, fileUrl, created);
+        String fileUrl = null;
+        int lifetime = 0;
+        long created = 0;
+        String clientSecret = null;
+        List<Comment> comments = new ArrayList<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case PARAM_ID:
+                    id = in.nextInt();
+                    break;
+                case PARAM_LAT:
+                    loc.setLatitude(in.nextDouble());
+                    break;
+                case PARAM_LNG:
+                    loc.setLongitude(in.nextDouble());
+                    break;
+                case PARAM_MEDIA_FILE:
+                    fileUrl = nextStringOrNull(in);
+                    break;
+                case PARAM_LIFETIME:
+                    lifetime = in.nextInt();
+                    break;
+                case PARAM_CREATED:
+                    created = in.nextTimestamp();
+                    break;
+                case PARAM_COMMENTS:
+                    // parse comments
+                    in.beginArray();
+                    while (in.hasNext())
+                        comments.add(Comment.parse(c, in));
+                    in.endArray();
+                    break;
+                case PARAM_CLIENT_SECRET:
+                    clientSecret = nextStringOrNull(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
 
-        // parse comments
-        JSONArray comments = obj.getJSONArray(PARAM_COMMENTS);
-        for (int i = 0; i < comments.length(); i++)
-            post.comments.add(Comment.parse(c, comments.getJSONObject(i)));
+        Post post = new Post(id, loc, fileUrl, lifetime, created);
+        post.mergeComments(comments);
 
         // see if there's a client secret included, if so, save it to the device for later use
         // the client secret is only returned on initial post creation
-        String clientSecret = obj.optString(PARAM_CLIENT_SECRET, null);
         if (clientSecret != null)
-            G.app.postSecrets.edit().putString(Integer.toString(id), clientSecret).commit();
+            G.app.localState.putPostSecret(id, clientSecret, post.getExpirationDate().getTime());
 
-        return post;
+        return PostRepository.intern(post); // the same post is only ever in memory once
+    }
+
+    /**
+     * Returns true if the specified media URL points to a video.
+     *
+     * @param url of media
+     * @return true if video
+     */
+    public static boolean isVideoUrl(String url) {
+        return url.endsWith(VIDEO_FILE_EXTENSION + '/') || url.endsWith(VIDEO_FILE_EXTENSION);
     }
 
     /**
@@ -339,9 +600,11 @@ public class Post extends Resource implements Parcelable {
      * Order:
      * 1. Integer: ID
      * 2. String: File URL
-     * 3. String: Creation date
-     * 4. Parcelable: Location
-     * 5. Parcelable array: Comments
+     * 3. Integer: Lifetime
+     * 4. Long: Creation time
+     * 5. Parcelable: Location
+     * 6. Parcelable array: Comments
+     * 7. Integer: Comment cursor
      */
 
     public static final Parcelable.Creator<Post> CREATOR = new Creator<Post>() {
@@ -349,20 +612,17 @@ public class Post extends Resource implements Parcelable {
         public Post createFromParcel(Parcel source) {
             int id = source.readInt();
             String fileUrl = source.readString();
-
-            Date date;
-            try {
-                date = G.STANDARD_DATE_FORMAT.parse(source.readString());
-            } catch (ParseException e) {
-                throw new RuntimeException(e);
-            }
-
+            int lifetime = source.readInt();
+            long created = source.readLong();
             Location location = source.readParcelable(null);
             Parcelable[] comments = source.readParcelableArray(getClass().getClassLoader());
 
-            Post post = new Post(id, location, fileUrl, date);
+            Post post = new Post(id, location, fileUrl, lifetime, created);
+            List<Comment> list = new ArrayList<>();
             for (Parcelable comment : comments)
-                post.comments.add((Comment) comment);
+                list.add((Comment) comment);
+            post.mergeComments(list);
+            post.commentCursor = source.readInt();
 
             return post;
         }
@@ -382,11 +642,14 @@ public class Post extends Resource implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(id);
         dest.writeString(fileUrl);
-        dest.writeString(G.STANDARD_DATE_FORMAT.format(created));
+        dest.writeInt(lifetime);
+        dest.writeLong(created);
 
         dest.writeParcelable(location, flags);
-        Parcelable[] comments = this.comments.toArray(new Parcelable[this.comments.size()]);
+        List<Comment> list = this.comments;
+        Parcelable[] comments = list.toArray(new Parcelable[list.size()]);
         dest.writeParcelableArray(comments, flags);
+        dest.writeInt(commentCursor);
     }
 
     // --------------------------------------------------------------------
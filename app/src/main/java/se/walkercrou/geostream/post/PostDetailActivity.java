@@ -5,9 +5,6 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Matrix;
-import android.media.MediaPlayer;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.v4.app.Fragment;
@@ -17,6 +14,7 @@ import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.app.NavUtils;
 import android.support.v4.view.ViewPager;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -27,7 +25,6 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.FrameLayout;
-import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -42,19 +39,27 @@ import java.util.Map;
 
 import se.walkercrou.geostream.MapActivity;
 import se.walkercrou.geostream.R;
+import se.walkercrou.geostream.net.MediaCache;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+import se.walkercrou.geostream.net.response.Response;
+import se.walkercrou.geostream.util.BitmapDecoder;
+import se.walkercrou.geostream.util.DecodedImage;
 import se.walkercrou.geostream.util.E;
 import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.ImageStore;
 
 /**
  * Activity launched when a new {@link Post} is created or a marker is clicked on the
- * {@link MapActivity}. The intent must contain a {@link #EXTRA_POST} with the {@link Post} that
- * is to be displayed. Provides back navigation to the {@link MapActivity}.
+ * {@link MapActivity}. The intent must contain a {@link #EXTRA_POST_ID} with the id of the
+ * {@link Post} that is to be displayed, which is taken from the {@link PostRepository}, or
+ * retrieved from the server again if the process has been restarted since. Provides back
+ * navigation to the {@link MapActivity}.
  */
 public class PostDetailActivity extends FragmentActivity implements ViewPager.OnPageChangeListener {
     /**
-     * Extra that contains the Post that is expected in this activity.
+     * Extra that contains the id of the Post that is expected in this activity.
      */
-    public static final String EXTRA_POST = "post";
+    public static final String EXTRA_POST_ID = "post_id";
     /**
      * The ViewPager position for the {@link MediaFragment}.
      */
@@ -74,44 +79,81 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
 
     private Post post;
     private String clientSecret; // signifies ownership of the post
-    private Object media; // either a Bitmap or String file path to video file
+    private Object media; // either a DecodedImage or String path or URL of video
     private ViewPager viewPager;
     private ProgressDialog progressDialog;
     private final Handler handler = new Handler();
 
     @Override
     public void onCreate(Bundle b) {
-        super.onCreate(b);
+        // the pages need the post, if it is no longer in memory they are not restored but created
+        // again once it has been retrieved, the id in the intent is all the state that is kept
+        int id = getIntent().getIntExtra(EXTRA_POST_ID, 0);
+        post = PostRepository.get(id);
+        super.onCreate(post != null ? b : null);
         requestWindowFeature(Window.FEATURE_ACTION_BAR_OVERLAY); // as to not distort the media
         setContentView(R.layout.activity_post_detail);
         G.init(this);
 
-        // get the passed post object
-        post = getIntent().getParcelableExtra(EXTRA_POST);
-        if (post == null)
-            throw new RuntimeException("PostDetailActivity started with null Post");
+        if (post != null)
+            showPost();
+        else
+            loadPost(id);
+    }
+
+    private void loadPost(int id) {
+        G.i("Post #" + id + " is no longer in memory, retrieving it again");
+        progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
+                getString(R.string.prompt_get_resource), true);
+        Post.load(this, id, response -> {
+            if (isFinishing())
+                return;
+            if (response == null) {
+                progressDialog.dismiss();
+                E.connection(this, (d, w) -> loadPost(id)).show();
+                return;
+            } else if (response.getStatusCode() == Response.STATUS_NOT_FOUND) {
+                progressDialog.dismiss();
+                Toast.makeText(this, R.string.error_post_no_longer_exists, Toast.LENGTH_SHORT)
+                        .show();
+                finish();
+                return;
+            } else if (!Response.check(response, e -> {
+                progressDialog.dismiss();
+                E.internal(this, e).show();
+            }))
+                return;
+            post = response.get();
+            showPost();
+            invalidateOptionsMenu(); // the actions depend on the post
+        });
+    }
 
+    private void showPost() {
         // see if we have the client secret for this post, okay if not
-        clientSecret = G.app.postSecrets.getString(Integer.toString(post.getId()), null);
+        clientSecret = G.app.localState.getPostSecret(post.getId());
         if (clientSecret != null) {
             G.i("This device is the owner of the Post");
             G.i("  client_secret=\"" + clientSecret + "\"");
         }
 
-        downloadMedia(); // sets 'media' to either a Bitmap or String file path
-
         actionBarHandler = new ActionBarHandler(getActionBar(), clientSecret);
         videoHandler = new VideoHandler();
-
-        // setup view paging between post and comments
-        PostDetailPagerAdapter adapter = new PostDetailPagerAdapter(getSupportFragmentManager());
         viewPager = (ViewPager) findViewById(R.id.pager);
-        viewPager.setAdapter(adapter);
-        viewPager.addOnPageChangeListener(this);
+
+        // sets 'media' to either a DecodedImage or String video path, then shows the pages
+        if (progressDialog == null) {
+            // otherwise still showing since the post was retrieved
+            progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
+                    getString(R.string.prompt_get_resource), true);
+        }
+        new Thread(this::downloadMedia).start();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
+        if (post == null)
+            return false; // still being retrieved
         getMenuInflater().inflate(R.menu.post_detail_activity_actions, menu);
         actionBarHandler.onMenuInflate(menu);
         return super.onCreateOptionsMenu(menu);
@@ -171,31 +213,22 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
     }
 
     /**
-     * Attempts to report this Post to the server.
+     * Queues a report of this Post to the server and hides it.
      *
      * @param reason of report
      */
     public void reportPost(Flag.Reason reason) {
-        progressDialog = ProgressDialog.show(this, getString(R.string.title_wait),
-                getString(R.string.prompt_reporting_post), true);
-        new Thread(() -> _reportPost(reason)).start();
-    }
-
-    private void _reportPost(Flag.Reason reason) {
         G.i("Reporting Post #" + post.getId() + " for: " + reason.toString());
         try {
-            post.flag(this, reason, (error) -> E.internal(this, error));
+            post.flag(this, reason, null); // sent in the background by the outbox
         } catch (IOException e) {
             e.printStackTrace();
-            handler.post(() -> E.reportPost(this));
+            E.reportPost(this).show();
             return;
         }
 
-        if (progressDialog != null)
-            progressDialog.dismiss();
-
         post.setHidden(true);
-        handler.post(() -> Toast.makeText(this, R.string.prompt_post_report, Toast.LENGTH_LONG).show());
+        Toast.makeText(this, R.string.prompt_post_report, Toast.LENGTH_LONG).show();
         startActivity(new Intent(this, MapActivity.class));
     }
 
@@ -259,29 +292,45 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
     }
 
     private void downloadMedia() {
+        // called on a background thread, decode images at the size of the screen
         G.i("Downloading Post media from: " + post.getMediaUrl());
+        DisplayMetrics display = getResources().getDisplayMetrics();
         Object media;
         try {
-            media = post.getMediaObject(this, e -> E.internal(this, e));
+            media = post.getMediaObject(this, display.widthPixels, display.heightPixels,
+                    e -> handler.post(() -> E.internal(this, e)));
         } catch (IOException e) {
             e.printStackTrace();
-            E.connection(this, (d, w) -> downloadMedia());
+            handler.post(() -> {
+                progressDialog.dismiss();
+                E.connection(this, (d, w) -> {
+                    progressDialog.show();
+                    new Thread(this::downloadMedia).start();
+                }).show();
+            });
             return;
         }
 
         // get and check result
-        if (media instanceof File) {
-            // received a video
-            this.media = media.toString();
-        } else {
-            // received an image
-            Bitmap bmp = (Bitmap) media;
-            Matrix matrix = new Matrix();
-            matrix.postRotate(90);
-            this.media = Bitmap.createBitmap(
-                    bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true
-            );
-        }
+        if (media == null) {
+            handler.post(progressDialog::dismiss); // error has already been reported
+            return;
+        } else if (media instanceof File)
+            this.media = media.toString(); // received a cached video
+        else
+            this.media = media; // received an image or the URL to stream a video from
+        handler.post(this::showMedia);
+    }
+
+    private void showMedia() {
+        if (isFinishing())
+            return;
+        progressDialog.dismiss();
+
+        // setup view paging between post and comments
+        PostDetailPagerAdapter adapter = new PostDetailPagerAdapter(getSupportFragmentManager());
+        viewPager.setAdapter(adapter);
+        viewPager.addOnPageChangeListener(this);
     }
 
     /**
@@ -413,36 +462,37 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
      * Wrapper class for handling video playback.
      */
     public static class VideoHandler {
-        private MediaPlayer mediaPlayer;
+        private VideoPreview video;
 
         /**
          * Called when the video is clicked. Pauses if playing and plays if paused.
          */
         public void onVideoClick() {
-            if (mediaPlayer != null) {
-                if (mediaPlayer.isPlaying()) {
-                    mediaPlayer.pause();
+            if (video != null) {
+                if (video.isPlaying()) {
+                    video.pause();
                     G.i("User paused video.");
                 } else {
-                    mediaPlayer.start();
+                    video.play();
                     G.i("User resumed video.");
                 }
             }
         }
 
         /**
-         * Called when the page is changed by the {@link ViewPager}. Starts the {@link MediaPlayer}
+         * Called when the page is changed by the {@link ViewPager}. Starts the {@link VideoPreview}
          * if switched to the {@link MediaFragment} and pauses if switched to the
          * {@link CommentsFragment}.
          *
          * @param position of page
          */
         public void onPageSelected(int position) {
-            if (position == PAGE_MEDIA) {
-                if (mediaPlayer != null && !mediaPlayer.isPlaying())
-                    mediaPlayer.start();
-            } else if (mediaPlayer != null && mediaPlayer.isPlaying())
-                mediaPlayer.pause();
+            if (video == null)
+                return;
+            if (position == PAGE_MEDIA)
+                video.play();
+            else
+                video.pause();
         }
     }
 
@@ -465,13 +515,14 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
                 case 0:
                     // prepare arguments
                     Bundle args = new Bundle();
-                    args.putParcelable(MediaFragment.ARG_POST, post);
+                    args.putInt(MediaFragment.ARG_POST_ID, post.getId());
                     if (media instanceof String) {
                         // video
                         args.putString(MediaFragment.ARG_VIDEO_FILE, media.toString());
                     } else {
-                        // image
-                        args.putParcelable(MediaFragment.ARG_IMAGE, (Bitmap) media);
+                        // image, pass a handle rather than the bitmap itself
+                        ImageStore.put(post.getMediaUrl(), (DecodedImage) media);
+                        args.putString(MediaFragment.ARG_IMAGE, post.getMediaUrl());
                     }
 
                     // create fragment
@@ -481,7 +532,7 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
                 case 1:
                     CommentsFragment comments = new CommentsFragment();
                     Bundle cargs = new Bundle();
-                    cargs.putParcelable(CommentsFragment.ARG_POST, post);
+                    cargs.putInt(CommentsFragment.ARG_POST_ID, post.getId());
                     comments.setArguments(cargs);
                     return comments;
                 default:
@@ -500,19 +551,77 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
      */
     public static class MediaFragment extends Fragment implements View.OnClickListener {
         /**
-         * {@link Bitmap}: Media image of post. Passed only in the absence of
-         * {@link #ARG_VIDEO_FILE}.
+         * {@link String}: Key of the media image of post in the {@link ImageStore}. Passed only in
+         * the absence of {@link #ARG_VIDEO_FILE}.
          */
         public static final String ARG_IMAGE = "image";
         /**
-         * {@link String}: File path to video file of post. Passed only in the absence of
+         * {@link String}: File path or URL of video of post. Passed only in the absence of
          * {@link #ARG_IMAGE}.
          */
         public static final String ARG_VIDEO_FILE = "video_file";
         /**
-         * {@link Post}: The post of the activity.
+         * Integer: The id of the post of the activity.
          */
-        public static final String ARG_POST = "post";
+        public static final String ARG_POST_ID = "post_id";
+
+        private final Handler handler = new Handler();
+        private String imageKey; // null if not showing an image
+        private DecodedImage image; // acquired from the ImageStore, null until available
+        private boolean destroyed;
+
+        @Override
+        public void onCreate(Bundle b) {
+            super.onCreate(b);
+            // hold on to the image until destroyed, a detached page may be shown again
+            imageKey = getArguments().getString(ARG_IMAGE);
+            if (imageKey == null)
+                return;
+            image = ImageStore.acquire(imageKey);
+            if (image == null) {
+                // the process has been restarted since the fragment was created, decode the image
+                // again off the main thread and show it once done
+                Context c = getContext().getApplicationContext();
+                DisplayMetrics display = getResources().getDisplayMetrics();
+                String key = imageKey;
+                new Thread(() -> {
+                    DecodedImage loaded = loadImage(c, key, display.widthPixels,
+                            display.heightPixels);
+                    if (loaded != null) {
+                        ImageStore.put(key, loaded);
+                        loaded = ImageStore.acquire(key);
+                    }
+                    DecodedImage acquired = loaded;
+                    handler.post(() -> onImageLoaded(acquired));
+                }).start();
+            }
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            destroyed = true;
+            if (image != null)
+                ImageStore.release(imageKey);
+            image = null;
+        }
+
+        private void onImageLoaded(DecodedImage loaded) {
+            if (loaded == null)
+                return; // already logged
+            if (destroyed) {
+                ImageStore.release(imageKey);
+                return;
+            }
+            image = loaded;
+            View view = getView();
+            if (view != null)
+                showImage((FrameLayout) view.findViewById(R.id.media));
+        }
+
+        private void showImage(FrameLayout fl) {
+            fl.addView(new ImagePreview(getContext(), image.getBitmap(), image.getRotation()));
+        }
 
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle b) {
@@ -520,11 +629,10 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
             Bundle args = getArguments();
 
             // initialize media
-            Bitmap bmp = args.getParcelable(ARG_IMAGE);
             FrameLayout fl = (FrameLayout) view.findViewById(R.id.media);
             fl.setOnClickListener(this);
 
-            if (bmp == null) {
+            if (imageKey == null) {
                 // not an image, check for video
                 String videoFilePath = args.getString(ARG_VIDEO_FILE);
                 if (videoFilePath == null)
@@ -534,18 +642,16 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
                 VideoPreview video = new VideoPreview(getContext(), videoFilePath);
                 fl.addView(video);
 
-                videoHandler.mediaPlayer = video.player;
-            } else {
-                // image found, add to view
-                ImageView image = new ImageView(getContext());
-                image.setImageBitmap(bmp);
-                fl.addView(image);
+                videoHandler.video = video;
+            } else if (image != null) {
+                // image found, add to view, otherwise it is added once decoded
+                showImage(fl);
             }
 
             actionBarHandler.onMediaLoad();
 
             // set the time
-            Post post = args.getParcelable(ARG_POST);
+            Post post = PostRepository.get(args.getInt(ARG_POST_ID));
             if (post != null)
                 ((TextView) view.findViewById(R.id.created))
                         .setText(G.getTimeDisplay(post.getCreationDate()));
@@ -558,6 +664,24 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
             actionBarHandler.onMediaClick();
             videoHandler.onVideoClick();
         }
+
+        private static DecodedImage loadImage(Context c, String url, int reqWidth,
+                                              int reqHeight) {
+            // called on a background thread
+            MediaCache cache = MediaCache.get(c);
+            DecodedImage image = cache.getImage(url);
+            if (image != null)
+                return image;
+            File file = cache.getFile(url);
+            if (file == null) {
+                G.e("MediaFragment: image no longer cached: " + url);
+                return null;
+            }
+            image = BitmapDecoder.decode(file, reqWidth, reqHeight);
+            if (image != null)
+                cache.putImage(url, image);
+            return image;
+        }
     }
 
     /**
@@ -585,9 +709,9 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
     public static class CommentsFragment extends Fragment implements View.OnClickListener,
             SwipeRefreshLayout.OnRefreshListener, AdapterView.OnItemLongClickListener {
         /**
-         * {@link Post}: The post of the activity.
+         * Integer: The id of the post of the activity.
          */
-        public static final String ARG_POST = "post";
+        public static final String ARG_POST_ID = "post_id";
 
         private View view;
         private CommentAdapter adapter;
@@ -602,7 +726,7 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
             view.findViewById(R.id.btn_send).setOnClickListener(this);
 
             // get post object
-            post = getArguments().getParcelable(ARG_POST);
+            post = PostRepository.get(getArguments().getInt(ARG_POST_ID));
             if (post == null)
                 throw new RuntimeException();
 
@@ -634,35 +758,37 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
                 return;
             }
 
-            // create comment
+            // queue comment, it is added to the ListView once created
             G.i("Sending comment on Post #" + post.getId());
             G.i("  Content: \"" + content + "\"");
-            Comment comment;
             try {
-                comment = post.comment(getContext(), content, G::e);
+                post.comment(getContext(), content, this::onCommentCreated);
             } catch (IOException e) {
                 E.comment(getContext()).show();
                 return;
             }
 
-            // add comment to ListView
-            if (comment != null) {
-                G.d(comment.getContent());
-                adapter.add(comment);
-            }
-
             // clear and remove focus from reply box
             field.setText("", TextView.BufferType.EDITABLE);
             view.requestFocus();
             G.hideVirtualKeyboard(getActivity(), view);
         }
 
+        private void onCommentCreated(ResourceResponse<Comment> response) {
+            if (!isAdded())
+                return; // fragment is gone, the comment has still been added to the post
+            if (!Response.check(response, e -> E.comment(getContext()).show()))
+                return;
+            Comment comment = response.get();
+            G.d(comment.getContent());
+            adapter.add(comment);
+        }
+
         @Override
         public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
             // called when a comment is "long clicked"
             Comment comment = (Comment) listView.getItemAtPosition(position);
-            String clientSecret
-                    = G.app.commentSecrets.getString(Integer.toString(comment.getId()), null);
+            String clientSecret = G.app.localState.getCommentSecret(comment.getId());
             // show delete dialog if owner, report dialog otherwise
             if (clientSecret == null)
                 showReportDialog(comment);
@@ -720,10 +846,11 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
                     .setTitle(R.string.title_delete_comment)
                     .setMessage(R.string.prompt_confirm_delete)
                     .setPositiveButton(R.string.action_delete, (d, w) -> {
-                        // delete the comment on the server
+                        // delete the comment on the server, refreshing only brings in new ones
                         try {
-                            comment.delete(c, clientSecret,
-                                    e -> E.internal(getActivity(), e));
+                            if (comment.delete(c, clientSecret,
+                                    e -> E.internal(getActivity(), e)))
+                                post.removeComment(comment);
                         } catch (IOException e) {
                             e.printStackTrace();
                             E.deleteComment(c);
@@ -740,10 +867,10 @@ public class PostDetailActivity extends FragmentActivity implements ViewPager.On
         private void reportComment(Comment comment, Flag.Reason reason) {
             G.i("Reporting Comment #" + comment.getId() + " for: " + reason);
             try {
-                comment.flag(getContext(), reason, e -> E.internal(getActivity(), e));
+                comment.flag(getContext(), reason, null); // sent in the background by the outbox
             } catch (IOException e) {
                 e.printStackTrace();
-                E.reportComment(getContext());
+                E.reportComment(getContext()).show();
                 return;
             }
 
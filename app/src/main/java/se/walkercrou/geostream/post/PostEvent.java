@@ -0,0 +1,167 @@
+package se.walkercrou.geostream.post;
+
+import android.content.Context;
+import android.location.Location;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.util.G;
+
+/**
+ * Represents a change to the posts on the map that the server pushed to a subscribed client, i.e.
+ * a post that was created, deleted or has expired.
+ *
+ * @see se.walkercrou.geostream.PostStream
+ */
+public class PostEvent extends Resource {
+    /**
+     * String: What happened to the post, one of {@link #TYPE_CREATED}, {@link #TYPE_DELETED} or
+     * {@link #TYPE_EXPIRED}.
+     */
+    public static final String PARAM_TYPE = "type";
+    /**
+     * Integer: The id of the post the event happened to.
+     */
+    public static final String PARAM_POST = "post";
+    /**
+     * Date: The date-time that the post was created.
+     */
+    public static final String PARAM_POST_CREATED = "post_created";
+    /**
+     * Integer: Id of the last event the client has seen, only later events are retrieved.
+     */
+    public static final String PARAM_SINCE = "since";
+    /**
+     * Integer: The most seconds the server waits for an event before responding.
+     */
+    public static final String PARAM_TIMEOUT = "timeout";
+
+    /**
+     * A post was created.
+     */
+    public static final String TYPE_CREATED = "created";
+    /**
+     * A post was deleted by its creator.
+     */
+    public static final String TYPE_DELETED = "deleted";
+    /**
+     * A post has reached the end of its lifetime.
+     */
+    public static final String TYPE_EXPIRED = "expired";
+
+    /**
+     * Response header with the id of the last event the server looked at, which is the cursor to
+     * continue from.
+     */
+    public static final String HEADER_CURSOR = "X-Event-Cursor";
+
+    /**
+     * API method that waits for events on posts within a set of map tiles.
+     */
+    public static final String METHOD_EVENTS = "events";
+
+    /**
+     * Shorthand for server use.
+     */
+    public static final String TYPE_NAME = "EVT";
+
+    /**
+     * Reads PostEvents from server responses.
+     */
+    public static final ResourceParser<PostEvent> PARSER = PostEvent::parse;
+
+    private final String type;
+    private final PostSummary post;
+
+    private PostEvent(int id, String type, PostSummary post, long created) {
+        super(id, TYPE_NAME, created);
+        this.type = type;
+        this.post = post;
+    }
+
+    /**
+     * Returns what happened to the post.
+     *
+     * @return type of event
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns true if the post was created, false if it was removed from the map.
+     *
+     * @return true if created
+     */
+    public boolean isCreated() {
+        return TYPE_CREATED.equals(type);
+    }
+
+    /**
+     * Returns the post the event happened to, as it was when the event happened. The comment
+     * count is always zero.
+     *
+     * @return post of event
+     */
+    public PostSummary getPost() {
+        return post;
+    }
+
+    /**
+     * Reads a new PostEvent from the specified {@link ResourceReader}, which must be positioned at
+     * the beginning of the event's object.
+     *
+     * @param in to read from
+     * @return new event
+     * @throws IOException if the response could not be read
+     * @throws ParseException if a date is malformed
+     */
+    public static PostEvent parse(Context c, ResourceReader in) throws IOException,
+            ParseException {
+        int id = 0;
+        String type = null;
+        int postId = 0;
+        Location loc = new Location(G.app.name);
+        int lifetime = 0;
+        long postCreated = 0;
+        long created = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case PARAM_ID:
+                    id = in.nextInt();
+                    break;
+                case PARAM_TYPE:
+                    type = in.nextString();
+                    break;
+                case PARAM_POST:
+                    postId = in.nextInt();
+                    break;
+                case Post.PARAM_LAT:
+                    loc.setLatitude(in.nextDouble());
+                    break;
+                case Post.PARAM_LNG:
+                    loc.setLongitude(in.nextDouble());
+                    break;
+                case Post.PARAM_LIFETIME:
+                    lifetime = in.nextInt();
+                    break;
+                case PARAM_POST_CREATED:
+                    postCreated = in.nextTimestamp();
+                    break;
+                case PARAM_CREATED:
+                    created = in.nextTimestamp();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new PostEvent(id, type, new PostSummary(postId, loc, lifetime, 0, postCreated),
+                created);
+    }
+}
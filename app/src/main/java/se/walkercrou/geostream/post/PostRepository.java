@@ -0,0 +1,89 @@
+package se.walkercrou.geostream.post;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide identity map of {@link Post}s by id, so that every part of the app works with the
+ * same instance of a post. Activities pass posts to each other by id and look them up here rather
+ * than parcelling them. The most recently used posts are kept, older posts are kept only for as
+ * long as something else still references them.
+ */
+public final class PostRepository {
+    /**
+     * Maximum amount of posts that are kept even if nothing else references them.
+     */
+    public static final int MAX_RETAINED = 16;
+
+    // id -> post, every post that is still reachable
+    private static final Map<Integer, WeakReference<Post>> posts = new HashMap<>();
+    // id -> post, in access order so the least recently used post is released first
+    private static final Map<Integer, Post> retained
+            = new LinkedHashMap<Integer, Post>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Post> eldest) {
+            return size() > MAX_RETAINED;
+        }
+    };
+
+    private PostRepository() {
+    }
+
+    /**
+     * Returns the post with the specified id.
+     *
+     * @param id of post
+     * @return post or null if not in memory, e.g. after the process has been restarted
+     */
+    public static synchronized Post get(int id) {
+        Post post = retained.get(id);
+        if (post != null)
+            return post;
+        WeakReference<Post> ref = posts.get(id);
+        post = ref == null ? null : ref.get();
+        if (post != null)
+            retained.put(id, post);
+        return post;
+    }
+
+    /**
+     * Returns the instance of the specified post that the rest of the app uses. If there is none
+     * yet, the specified post becomes it. Otherwise any comments the specified post has that the
+     * existing instance does not are merged into the existing instance, which is returned.
+     *
+     * @param post to look up
+     * @return shared instance of post
+     */
+    public static synchronized Post intern(Post post) {
+        Post existing = get(post.getId());
+        if (existing == post)
+            return post;
+        if (existing != null) {
+            existing.mergeComments(post.getComments());
+            return existing;
+        }
+
+        // drop references to posts that have been collected while we are at it
+        Iterator<WeakReference<Post>> iter = posts.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() == null)
+                iter.remove();
+        }
+        posts.put(post.getId(), new WeakReference<>(post));
+        retained.put(post.getId(), post);
+        return post;
+    }
+
+    /**
+     * Forgets the post with the specified id, e.g. after it has been deleted.
+     *
+     * @param id of post
+     */
+    public static synchronized void remove(int id) {
+        posts.remove(id);
+        retained.remove(id);
+    }
+}
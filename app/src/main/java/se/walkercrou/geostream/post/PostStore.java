@@ -0,0 +1,209 @@
+package se.walkercrou.geostream.post;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.Tile;
+
+/**
+ * Keeps the summaries of the posts recently seen on the map in a database on the device, so that
+ * the map can show them right away on launch, and answer for a region while the server cannot be
+ * reached, before reconciling with the server. Posts are indexed by location and by expiration,
+ * and are dropped once they have expired. The database must not be used on the main thread.
+ */
+public final class PostStore extends SQLiteOpenHelper {
+    /**
+     * Name of the database file.
+     */
+    public static final String DATABASE_NAME = "posts.db";
+    /**
+     * Version of the database schema. The store is only a cache, so its contents are dropped when
+     * the schema changes.
+     */
+    public static final int VERSION = 1;
+
+    private static final String TABLE = "posts";
+    private static final String COLUMNS = "id, lat, lng, lifetime, comment_count, created";
+    private static PostStore instance;
+
+    private PostStore(Context c) {
+        super(c, DATABASE_NAME, null, VERSION);
+    }
+
+    /**
+     * Returns the process wide post store, creating it if needed. The database is not opened until
+     * it is first used.
+     *
+     * @param c context
+     * @return post store
+     */
+    public static synchronized PostStore get(Context c) {
+        if (instance == null)
+            instance = new PostStore(c.getApplicationContext());
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY, lat REAL NOT NULL, "
+                + "lng REAL NOT NULL, lifetime INTEGER NOT NULL, comment_count INTEGER NOT NULL, "
+                + "created INTEGER NOT NULL, expires INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX posts_location ON " + TABLE + " (lat, lng)");
+        db.execSQL("CREATE INDEX posts_expires ON " + TABLE + " (expires)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the posts within the specified range that have not expired yet, the most recent
+     * first.
+     *
+     * @param fromLat lower latitude
+     * @param toLat   upper latitude
+     * @param fromLng lower longitude
+     * @param toLng   upper longitude
+     * @param now     current time
+     * @return posts within range
+     */
+    public List<PostSummary> range(double fromLat, double toLat, double fromLng, double toLng,
+                                   long now) {
+        List<PostSummary> posts = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + COLUMNS + " FROM " + TABLE
+                        + " WHERE lat BETWEEN ? AND ? AND lng BETWEEN ? AND ? AND expires > ?"
+                        + " ORDER BY created DESC",
+                new String[]{Double.toString(fromLat), Double.toString(toLat),
+                        Double.toString(fromLng), Double.toString(toLng), Long.toString(now)});
+        try {
+            while (cursor.moveToNext())
+                posts.add(read(cursor));
+        } finally {
+            cursor.close();
+        }
+        return posts;
+    }
+
+    /**
+     * Replaces the posts stored for each of the specified tiles with the posts the server has
+     * returned for it, and drops the posts that have expired.
+     *
+     * @param tiles tile -> every post the map shows within it
+     * @param now   current time
+     */
+    public void replace(Map<Tile, List<PostSummary>> tiles, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + TABLE + " WHERE expires <= ?", new Object[]{now});
+
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE id = ?");
+            SQLiteStatement insert = insertStatement(db);
+            for (Map.Entry<Tile, List<PostSummary>> e : tiles.entrySet()) {
+                Tile tile = e.getKey();
+                Set<Integer> kept = new HashSet<>();
+                for (PostSummary post : e.getValue()) {
+                    insert(insert, post);
+                    kept.add(post.getId());
+                }
+
+                // drop the posts within the tile that the server no longer has
+                for (int id : idsWithin(db, tile)) {
+                    if (!kept.contains(id)) {
+                        delete.bindLong(1, id);
+                        delete.executeUpdateDelete();
+                    }
+                }
+            }
+            delete.close();
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies the events pushed by a {@link se.walkercrou.geostream.PostStream} to the stored
+     * posts.
+     *
+     * @param events to apply, in the order they happened
+     */
+    public void apply(List<PostEvent> events) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE id = ?");
+            SQLiteStatement insert = insertStatement(db);
+            for (PostEvent event : events) {
+                if (event.isCreated())
+                    insert(insert, event.getPost());
+                else {
+                    delete.bindLong(1, event.getPost().getId());
+                    delete.executeUpdateDelete();
+                }
+            }
+            delete.close();
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private List<Integer> idsWithin(SQLiteDatabase db, Tile tile) {
+        // the bounds include the edges shared with neighbouring tiles, the projection decides
+        List<Integer> ids = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT id, lat, lng FROM " + TABLE
+                        + " WHERE lat BETWEEN ? AND ? AND lng BETWEEN ? AND ?",
+                new String[]{Double.toString(tile.getSouth()), Double.toString(tile.getNorth()),
+                        Double.toString(tile.getWest()), Double.toString(tile.getEast())});
+        try {
+            while (cursor.moveToNext()) {
+                if (tile.equals(Tile.of(cursor.getDouble(1), cursor.getDouble(2), tile.getZoom())))
+                    ids.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static SQLiteStatement insertStatement(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE INTO " + TABLE + " (" + COLUMNS
+                + ", expires) VALUES (?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    private static void insert(SQLiteStatement insert, PostSummary post) {
+        Location loc = post.getLocation();
+        insert.bindLong(1, post.getId());
+        insert.bindDouble(2, loc.getLatitude());
+        insert.bindDouble(3, loc.getLongitude());
+        insert.bindLong(4, post.getLifetime());
+        insert.bindLong(5, post.getCommentCount());
+        insert.bindLong(6, post.getCreationTime());
+        insert.bindLong(7, post.getExpirationDate().getTime());
+        insert.executeInsert();
+    }
+
+    private static PostSummary read(Cursor cursor) {
+        Location loc = new Location(G.app.name);
+        loc.setLatitude(cursor.getDouble(1));
+        loc.setLongitude(cursor.getDouble(2));
+        return new PostSummary(cursor.getInt(0), loc, cursor.getInt(3), cursor.getInt(4),
+                cursor.getLong(5));
+    }
+}
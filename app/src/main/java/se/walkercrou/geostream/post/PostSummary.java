@@ -0,0 +1,210 @@
+package se.walkercrou.geostream.post;
+
+import android.content.Context;
+import android.location.Location;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import se.walkercrou.geostream.net.ErrorCallback;
+import se.walkercrou.geostream.net.Resource;
+import se.walkercrou.geostream.net.ResourceParser;
+import se.walkercrou.geostream.net.ResourceReader;
+import se.walkercrou.geostream.net.ResponseCallback;
+import se.walkercrou.geostream.net.request.ResourceListRequest;
+import se.walkercrou.geostream.net.response.ResourceResponse;
+import se.walkercrou.geostream.net.response.Response;
+import se.walkercrou.geostream.util.G;
+import se.walkercrou.geostream.util.Tile;
+
+/**
+ * Lightweight projection of a {@link Post} with only what is needed to place it on the map. The
+ * media and comments of the post are left out, the full post is retrieved with
+ * {@link #load(Context, ResponseCallback)} once it is opened.
+ */
+public class PostSummary extends Resource {
+    /**
+     * Integer: The amount of comments on the post.
+     */
+    public static final String PARAM_COMMENT_COUNT = "comment_count";
+    /**
+     * String: Set to {@link #VIEW_SUMMARY} to retrieve summaries instead of full posts.
+     */
+    public static final String PARAM_VIEW = "view";
+    /**
+     * Value of {@link #PARAM_VIEW} for summaries.
+     */
+    public static final String VIEW_SUMMARY = "summary";
+
+    /**
+     * Reads PostSummaries from server responses.
+     */
+    public static final ResourceParser<PostSummary> PARSER = PostSummary::parse;
+
+    private final Location location;
+    private final int lifetime;
+    private final int commentCount;
+
+    PostSummary(int id, Location location, int lifetime, int commentCount, long created) {
+        super(id, Post.TYPE_NAME, created);
+        this.location = location;
+        this.lifetime = lifetime;
+        this.commentCount = commentCount;
+    }
+
+    /**
+     * Returns the location where the post was created.
+     *
+     * @return location post was created at
+     */
+    public Location getLocation() {
+        return location;
+    }
+
+    /**
+     * Returns the amount of hours the post is available for after its creation.
+     *
+     * @return lifetime in hours
+     */
+    public int getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Returns the amount of comments on the post.
+     *
+     * @return comment count
+     */
+    public int getCommentCount() {
+        return commentCount;
+    }
+
+    /**
+     * Returns the {@link Date} after which the post is no longer available.
+     *
+     * @return date of expiration
+     */
+    public Date getExpirationDate() {
+        return new Date(created + lifetime * 60L * 60 * 1000);
+    }
+
+    /**
+     * Returns true if the post is hidden for this device.
+     *
+     * @return true if hidden
+     * @see Post#isHidden()
+     */
+    public boolean isHidden() {
+        return G.app.localState.isPostHidden(id);
+    }
+
+    /**
+     * Retrieves the full post in the background.
+     *
+     * @param c        context
+     * @param callback notified on the main thread with the post
+     * @return future response
+     */
+    public Future<ResourceResponse<Post>> load(Context c,
+                                               ResponseCallback<ResourceResponse<Post>> callback) {
+        return Post.load(c, id, callback);
+    }
+
+    /**
+     * Returns summaries of the top Posts within each of the specified map tiles.
+     *
+     * @param c context
+     * @param zoom zoom level of tiles
+     * @param tiles to get posts within
+     * @param limit most posts to return per tile
+     * @param overflow filled with the amount of posts left out of each tile that had more
+     * @param callback in case of error
+     * @return list of post summaries within tiles
+     * @throws IOException
+     */
+    public static List<PostSummary> tiles(Context c, int zoom, List<Tile> tiles, int limit,
+                                          Map<Tile, Integer> overflow, ErrorCallback callback)
+            throws IOException {
+        StringBuilder param = new StringBuilder();
+        for (Tile tile : tiles) {
+            if (param.length() > 0)
+                param.append(',');
+            param.append(tile);
+        }
+        ResourceListRequest<PostSummary> request = new ResourceListRequest<>(c, PARSER,
+                Resource.POSTS, Post.METHOD_TILES);
+        request.set(Post.PARAM_ZOOM, zoom)
+                .set(Post.PARAM_TILES, param)
+                .set(PARAM_VIEW, VIEW_SUMMARY)
+                .set(Post.PARAM_LIMIT, limit)
+                .set(Post.PARAM_ORDER, Post.ORDER_RECENT);
+        ResourceResponse<PostSummary> response = request.sendInBackground();
+        if (!Response.check(response, callback))
+            return null;
+
+        // e.g. "70406:42988=12,70407:42988=3"
+        String header = response.getHeader(Post.HEADER_TILE_OVERFLOW_COUNTS);
+        if (header != null && !header.trim().isEmpty()) {
+            for (String entry : header.split(",")) {
+                int sep = entry.indexOf('=');
+                Tile tile = sep == -1 ? null : Tile.parse(entry.substring(0, sep).trim(), zoom);
+                if (tile != null) {
+                    try {
+                        overflow.put(tile, Integer.parseInt(entry.substring(sep + 1).trim()));
+                    } catch (NumberFormatException e) {
+                        G.e("malformed overflow count: " + entry);
+                    }
+                }
+            }
+        }
+        return response.getList();
+    }
+
+    /**
+     * Reads a new PostSummary from the specified {@link ResourceReader}, which must be
+     * positioned at the beginning of the summary's object.
+     *
+     * @param in to read from
+     * @return new post summary
+     * @throws IOException if the response could not be read
+     * @throws ParseException if the creation date is malformed
+     */
+    public static PostSummary parse(Context c, ResourceReader in) throws IOException, ParseException {
+        int id = 0;
+        Location loc = new Location(G.app.name);
+        int lifetime = 0;
+        int commentCount = 0;
+        long created = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case PARAM_ID:
+                    id = in.nextInt();
+                    break;
+                case Post.PARAM_LAT:
+                    loc.setLatitude(in.nextDouble());
+                    break;
+                case Post.PARAM_LNG:
+                    loc.setLongitude(in.nextDouble());
+                    break;
+                case Post.PARAM_LIFETIME:
+                    lifetime = in.nextInt();
+                    break;
+                case PARAM_COMMENT_COUNT:
+                    commentCount = in.nextInt();
+                    break;
+                case PARAM_CREATED:
+                    created = in.nextTimestamp();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new PostSummary(id, loc, lifetime, commentCount, created);
+    }
+}
@@ -8,12 +8,18 @@ import android.view.SurfaceView;
 
 import java.io.IOException;
 
+import se.walkercrou.geostream.net.StreamingProxy;
+import se.walkercrou.geostream.util.G;
+
 /**
- * Represents a video playback view within a {@link PostDetailActivity}.
+ * Represents a video playback view within a {@link PostDetailActivity}. The video is prepared
+ * asynchronously so that a video that is still being streamed does not block the main thread.
  */
-public class VideoPreview extends SurfaceView implements SurfaceHolder.Callback {
+public class VideoPreview extends SurfaceView implements SurfaceHolder.Callback,
+        MediaPlayer.OnPreparedListener {
     protected final MediaPlayer player = new MediaPlayer();
-    private final String dataSource; // path to video
+    private final String dataSource; // path or local URL of video
+    private boolean prepared, paused, released;
 
     public VideoPreview(Context context, String dataSource) {
         super(context);
@@ -23,6 +29,33 @@ public class VideoPreview extends SurfaceView implements SurfaceHolder.Callback
         holder.addCallback(this);
     }
 
+    /**
+     * Starts or resumes playback, if the video is not prepared yet it will start once it is.
+     */
+    public void play() {
+        paused = false;
+        if (prepared && !player.isPlaying())
+            player.start();
+    }
+
+    /**
+     * Pauses playback.
+     */
+    public void pause() {
+        paused = true;
+        if (prepared && player.isPlaying())
+            player.pause();
+    }
+
+    /**
+     * Returns true if the video is playing or will play once prepared.
+     *
+     * @return true if playing
+     */
+    public boolean isPlaying() {
+        return !paused && !released;
+    }
+
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         // start MediaPlayer
@@ -30,15 +63,24 @@ public class VideoPreview extends SurfaceView implements SurfaceHolder.Callback
         player.setScreenOnWhilePlaying(true);
         player.setLooping(true);
         player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnPreparedListener(this);
 
         try {
             player.setDataSource(dataSource);
-            player.prepare();
+            player.prepareAsync();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        player.start();
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if (released)
+            return;
+        G.d("Video prepared: " + dataSource);
+        prepared = true;
+        if (!paused)
+            player.start();
     }
 
     @Override
@@ -47,7 +89,10 @@ public class VideoPreview extends SurfaceView implements SurfaceHolder.Callback
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        player.stop();
+        released = true;
+        if (prepared)
+            player.stop();
         player.release();
+        StreamingProxy.release(dataSource);
     }
 }
@@ -0,0 +1,163 @@
+package se.walkercrou.geostream.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Helper class for decoding images at the size they are displayed at. The bounds of the image are
+ * read first to pick a sample size for the target size, images without alpha are decoded as
+ * {@link Bitmap.Config#RGB_565} and bitmaps that are no longer used may be offered back to be
+ * reused for future decodes.
+ */
+public final class BitmapDecoder {
+    /**
+     * Rotation used when an image does not specify one. Images are captured in portrait with the
+     * camera's landscape sensor.
+     */
+    public static final int DEFAULT_ROTATION = 90;
+    /**
+     * Maximum amount of bitmaps held for reuse.
+     */
+    public static final int MAX_REUSABLE = 4;
+
+    private static final String MIME_JPEG = "image/jpeg";
+    private static final List<SoftReference<Bitmap>> reusable = new LinkedList<>();
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes the specified image file to fit within the specified size once rotated.
+     *
+     * @param file      to decode
+     * @param reqWidth  width of the view the image is displayed in
+     * @param reqHeight height of the view the image is displayed in
+     * @return decoded image or null if the file could not be decoded
+     */
+    public static DecodedImage decode(File file, int reqWidth, int reqHeight) {
+        String path = file.getPath();
+        int rotation = readRotation(path);
+
+        // read bounds only
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0)
+            return null;
+
+        // compare against the rotated size of the image
+        boolean sideways = rotation == 90 || rotation == 270;
+        int width = sideways ? opts.outHeight : opts.outWidth;
+        int height = sideways ? opts.outWidth : opts.outHeight;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = calculateSampleSize(width, height, reqWidth, reqHeight);
+        opts.inPreferredConfig = MIME_JPEG.equals(opts.outMimeType) ? Bitmap.Config.RGB_565
+                : Bitmap.Config.ARGB_8888;
+        opts.inMutable = true; // required to be reused later
+        opts.inBitmap = findReusable(opts);
+
+        Bitmap bmp;
+        try {
+            bmp = BitmapFactory.decodeFile(path, opts);
+        } catch (IllegalArgumentException e) {
+            // reused bitmap was not suitable after all
+            opts.inBitmap = null;
+            bmp = BitmapFactory.decodeFile(path, opts);
+        }
+        return bmp == null ? null : new DecodedImage(bmp, rotation);
+    }
+
+    /**
+     * Offers a bitmap that is no longer displayed to be reused by a future decode.
+     *
+     * @param bmp no longer in use
+     */
+    public static void offerReusable(Bitmap bmp) {
+        if (bmp == null || !bmp.isMutable() || bmp.isRecycled())
+            return;
+        synchronized (reusable) {
+            reusable.add(new SoftReference<>(bmp));
+            if (reusable.size() > MAX_REUSABLE)
+                reusable.remove(0);
+        }
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps the image at least as large as the
+     * required size.
+     *
+     * @param width     of image
+     * @param height    of image
+     * @param reqWidth  required width
+     * @param reqHeight required height
+     * @return sample size
+     */
+    public static int calculateSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return sampleSize;
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static int readRotation(String path) {
+        int orientation;
+        try {
+            orientation = new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return DEFAULT_ROTATION;
+        }
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return DEFAULT_ROTATION;
+        }
+    }
+
+    private static Bitmap findReusable(BitmapFactory.Options opts) {
+        synchronized (reusable) {
+            Iterator<SoftReference<Bitmap>> iter = reusable.iterator();
+            while (iter.hasNext()) {
+                Bitmap candidate = iter.next().get();
+                if (candidate == null || candidate.isRecycled()) {
+                    iter.remove();
+                } else if (canReuse(candidate, opts)) {
+                    iter.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap candidate, BitmapFactory.Options opts) {
+        int width = opts.outWidth / opts.inSampleSize;
+        int height = opts.outHeight / opts.inSampleSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // any bitmap that is large enough may be reused
+            int bytesPerPixel = opts.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+            return candidate.getAllocationByteCount() >= width * height * bytesPerPixel;
+        }
+        // before KitKat the bitmap must be exactly the same size and not sampled
+        return opts.inSampleSize == 1 && candidate.getWidth() == width
+                && candidate.getHeight() == height
+                && candidate.getConfig() == opts.inPreferredConfig;
+    }
+}
@@ -0,0 +1,44 @@
+package se.walkercrou.geostream.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * A decoded {@link Bitmap} along with the rotation it should be displayed with. The rotation is
+ * applied when drawing instead of creating a rotated copy of the bitmap.
+ */
+public final class DecodedImage {
+    private final Bitmap bitmap;
+    private final int rotation;
+
+    public DecodedImage(Bitmap bitmap, int rotation) {
+        this.bitmap = bitmap;
+        this.rotation = rotation;
+    }
+
+    /**
+     * Returns the decoded bitmap.
+     *
+     * @return decoded bitmap
+     */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * Returns the clockwise rotation (in degrees) to display the bitmap with.
+     *
+     * @return rotation in degrees
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Returns the amount of memory used by the bitmap.
+     *
+     * @return size in bytes
+     */
+    public int getByteCount() {
+        return bitmap.getByteCount();
+    }
+}
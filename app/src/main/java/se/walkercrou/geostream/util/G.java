@@ -2,7 +2,6 @@ package se.walkercrou.geostream.util;
 
 import android.app.Activity;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -10,12 +9,8 @@ import android.util.Log;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Locale;
 import java.util.TimeZone;
 
 import se.walkercrou.geostream.R;
@@ -33,36 +28,21 @@ public final class G {
      * created.
      */
     public static final String CLIENT_SECRETS_FILE_NAME = "ClientSecrets";
-    /**
-     * The date format used by both the client and the server.
-     */
-    public static final DateFormat STANDARD_DATE_FORMAT
-            = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
     /**
      * The time zone used by both the client and the server.
      */
     public static final TimeZone STANDARD_TIME_ZONE = TimeZone.getTimeZone("UTC");
 
-    static {
-        STANDARD_DATE_FORMAT.setTimeZone(STANDARD_TIME_ZONE);
-    }
-
     public final String name; // application name
     public final String serverUrl; // location of server
     public final int versionCode;
-    public final SharedPreferences postSecrets; // collection of client_secrets to edit posts
-    public final SharedPreferences commentSecrets; // collection of client_secrets to edit comments
-    public final SharedPreferences hiddenPosts; // posts that are hidden from the client
-    public final SharedPreferences hiddenComments; // comments that are hidden from the client
+    public final LocalStateStore localState; // hidden posts and comments, client secrets
     public boolean splashed = false; // true if splash screen has been displayed
 
     private G(Context context) {
         name = context.getString(R.string.app_name);
         serverUrl = context.getString(R.string.server_url);
-        postSecrets = context.getSharedPreferences("PostSecrets", Context.MODE_PRIVATE);
-        commentSecrets = context.getSharedPreferences("CommentSecrets", Context.MODE_PRIVATE);
-        hiddenPosts = context.getSharedPreferences("HiddenPosts", Context.MODE_PRIVATE);
-        hiddenComments = context.getSharedPreferences("HiddenComments", Context.MODE_PRIVATE);
+        localState = new LocalStateStore(context.getApplicationContext());
 
         // set version code
         try {
@@ -143,23 +123,6 @@ public final class G {
         return netInfo != null && netInfo.isConnected();
     }
 
-    /**
-     * Parses a server-formatted date string using the {@link #STANDARD_DATE_FORMAT}.
-     *
-     * @param str to parse
-     * @return formatted date
-     * @throws ParseException if the string is malformed
-     */
-    public static Date parseDateString(String str) throws ParseException {
-        // e.g. "2015-12-16T19:11:46.202321Z"
-        String[] dateTime = str.split("T"); // time and date separated by "T" char
-        String date = dateTime[0];
-        // we don't really care about the millis, cut off time from the dot
-        String time = dateTime[1].substring(0, dateTime[1].indexOf('.'));
-        // parse with standard date format, in UTC, like the server
-        return STANDARD_DATE_FORMAT.parse(date + ' ' + time);
-    }
-
     /**
      * Returns the string to display for timestamps on Posts or Comments. Compared to the current
      * date.
@@ -0,0 +1,115 @@
+package se.walkercrou.geostream.util;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide store of decoded images that are handed to fragments by key, so that bitmaps never
+ * have to be put in argument or saved state bundles. Images are reference counted: an image is
+ * held while at least one fragment has acquired it and is released once the last one lets go of
+ * it. An image that has been put but not yet acquired is only held for as long as something else,
+ * such as the {@link se.walkercrou.geostream.net.MediaCache}, still references it.
+ */
+public final class ImageStore {
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    private ImageStore() {
+    }
+
+    /**
+     * Makes the specified image available under the specified key, replacing any image under the
+     * key that is no longer in use.
+     *
+     * @param key   to acquire the image with, e.g. the url of the media
+     * @param image decoded image
+     */
+    public static synchronized void put(String key, DecodedImage image) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.refs > 0)
+            return; // the image is on screen, keep showing the same one
+        entries.put(key, new Entry(image));
+    }
+
+    /**
+     * Returns the image under the specified key and holds it until {@link #release(String)} is
+     * called with the same key.
+     *
+     * @param key of image
+     * @return image or null if it is no longer available
+     */
+    public static synchronized DecodedImage acquire(String key) {
+        Entry entry = entries.get(key);
+        DecodedImage image = entry == null ? null : entry.get();
+        if (image == null) {
+            entries.remove(key);
+            return null;
+        }
+        entry.held = image;
+        entry.refs++;
+        return image;
+    }
+
+    /**
+     * Lets go of an image previously returned by {@link #acquire(String)}. The image is released
+     * once it is no longer acquired by anyone.
+     *
+     * @param key of image
+     */
+    public static synchronized void release(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.refs == 0)
+            return;
+        if (--entry.refs == 0) {
+            entry.held = null;
+            purge();
+        }
+    }
+
+    /**
+     * Forgets every image that uses the specified bitmap unless one of them is acquired, so that
+     * the bitmap can be reused for another image without changing an image handed out later.
+     *
+     * @param bmp to discard
+     * @return true if the bitmap is not in use and may be reused
+     */
+    public static synchronized boolean discard(Bitmap bmp) {
+        for (Entry entry : entries.values()) {
+            if (entry.refs > 0 && entry.held.getBitmap() == bmp)
+                return false;
+        }
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            DecodedImage image = iter.next().get();
+            if (image == null || image.getBitmap() == bmp)
+                iter.remove();
+        }
+        return true;
+    }
+
+    private static void purge() {
+        // drop the entries of images that have been collected
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() == null)
+                iter.remove();
+        }
+    }
+
+    private static class Entry {
+        private final WeakReference<DecodedImage> ref;
+        private DecodedImage held; // strong reference while acquired
+        private int refs;
+
+        private Entry(DecodedImage image) {
+            ref = new WeakReference<>(image);
+        }
+
+        private DecodedImage get() {
+            return held != null ? held : ref.get();
+        }
+    }
+}
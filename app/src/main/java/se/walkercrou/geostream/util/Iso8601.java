@@ -0,0 +1,110 @@
+package se.walkercrou.geostream.util;
+
+import java.text.ParseException;
+
+/**
+ * Parses ISO 8601 timestamps, as used by the server, into milliseconds since the epoch.
+ * Unlike {@link java.text.SimpleDateFormat} there is no shared state, so it is safe to use from
+ * any thread, and parsing reads the characters in place without creating intermediate strings.
+ */
+public final class Iso8601 {
+    private Iso8601() {
+    }
+
+    /**
+     * Parses a timestamp such as "2015-12-16T19:11:46.202321Z". The fraction of a second is
+     * optional and may have any amount of digits, only millis are kept. The time zone may be "Z",
+     * an offset such as "+01:00", "+0100" or "+01", or left out for UTC.
+     *
+     * @param s to parse
+     * @return milliseconds since the epoch
+     * @throws ParseException if the timestamp is malformed
+     */
+    public static long parse(CharSequence s) throws ParseException {
+        int year = digits(s, 0, 4);
+        expect(s, 4, '-');
+        int month = digits(s, 5, 2);
+        expect(s, 7, '-');
+        int day = digits(s, 8, 2);
+        if (s.length() <= 10 || (s.charAt(10) != 'T' && s.charAt(10) != ' '))
+            throw new ParseException("expected 'T': " + s, 10);
+        int hour = digits(s, 11, 2);
+        expect(s, 13, ':');
+        int minute = digits(s, 14, 2);
+        expect(s, 16, ':');
+        int second = digits(s, 17, 2);
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+                || second > 59)
+            throw new ParseException("field out of range: " + s, 0);
+
+        // fraction of a second
+        int i = 19, len = s.length();
+        int millis = 0;
+        if (i < len && s.charAt(i) == '.') {
+            int start = ++i;
+            for (int scale = 100; i < len && isDigit(s.charAt(i)); i++, scale /= 10)
+                millis += (s.charAt(i) - '0') * scale;
+            if (i == start)
+                throw new ParseException("expected fraction: " + s, i);
+        }
+
+        // time zone
+        long offset = 0;
+        if (i < len) {
+            char c = s.charAt(i);
+            if (c == 'Z')
+                i++;
+            else if (c == '+' || c == '-') {
+                int offsetMinutes = digits(s, i + 1, 2) * 60;
+                i += 3;
+                if (i < len && s.charAt(i) == ':')
+                    i++;
+                if (i < len) {
+                    offsetMinutes += digits(s, i, 2);
+                    i += 2;
+                }
+                offset = (c == '-' ? -offsetMinutes : offsetMinutes) * 60 * 1000L;
+            }
+        }
+        if (i != len)
+            throw new ParseException("unexpected trailing characters: " + s, i);
+
+        long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600 + minute * 60
+                + second;
+        return seconds * 1000 + millis - offset;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        // days since 1970-01-01 in the proleptic gregorian calendar, with years starting in march
+        // so that the leap day is last (http://howardhinnant.github.io/date_algorithms.html)
+        if (month <= 2)
+            year--;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yoe = year - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static int digits(CharSequence s, int start, int count) throws ParseException {
+        if (start + count > s.length())
+            throw new ParseException("unexpected end: " + s, s.length());
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+                throw new ParseException("expected digit: " + s, i);
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    private static void expect(CharSequence s, int i, char c) throws ParseException {
+        if (i >= s.length() || s.charAt(i) != c)
+            throw new ParseException("expected '" + c + "': " + s, i);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,479 @@
+package se.walkercrou.geostream.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State this device keeps about posts and comments: which ones the user has hidden and the client
+ * secrets of the ones the user has created. Everything is held in memory in sorted id tables, so
+ * lookups do not allocate or touch the disk. Changes are appended to a single log file in batches
+ * on a background thread, and entries are pruned once the post they belong to has expired.
+ */
+public final class LocalStateStore {
+    /**
+     * Name of the log file within the files dir.
+     */
+    public static final String FILE_NAME = "local_state";
+    /**
+     * Maximum lifetime (in millis) of a post, as enforced by the server. Used as the expiration of
+     * entries whose post is not known, which is the case for comments.
+     */
+    public static final long MAX_LIFETIME = 24 * 60 * 60 * 1000;
+    /**
+     * Time (in millis) changes are collected for before they are written out together.
+     */
+    public static final long FLUSH_DELAY = 1000;
+    /**
+     * Amount of records the log may have beyond twice the amount of entries before it is rewritten
+     * with only the live entries.
+     */
+    public static final int COMPACT_SLACK = 64;
+
+    // tables, the index of a table is part of each record so it must not change
+    private static final int HIDDEN_POSTS = 0;
+    private static final int HIDDEN_COMMENTS = 1;
+    private static final int POST_SECRETS = 2;
+    private static final int COMMENT_SECRETS = 3;
+
+    // record: op (table << 1 | removed), id, and for puts the expiration and secret if any
+    private static final int OP_REMOVE = 1;
+
+    private final File file;
+    private final Table[] tables = {
+            new Table(false), new Table(false), new Table(true), new Table(true)
+    };
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ScheduledThreadPoolExecutor writer;
+    private int records; // records in the log file and pending
+    private boolean flushScheduled;
+
+    /**
+     * Loads the state from the log file, importing the preferences the state used to be kept in
+     * if they are still around.
+     *
+     * @param c context
+     */
+    public LocalStateStore(Context c) {
+        file = new File(c.getFilesDir(), FILE_NAME);
+        writer = new ScheduledThreadPoolExecutor(1, r -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, LocalStateStore.class.getSimpleName()));
+        writer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        writer.allowCoreThreadTimeOut(true);
+
+        load();
+        long expiresAt = System.currentTimeMillis() + MAX_LIFETIME;
+        importPreferences(c, "HiddenPosts", HIDDEN_POSTS, expiresAt);
+        importPreferences(c, "HiddenComments", HIDDEN_COMMENTS, expiresAt);
+        importPreferences(c, "PostSecrets", POST_SECRETS, expiresAt);
+        importPreferences(c, "CommentSecrets", COMMENT_SECRETS, expiresAt);
+    }
+
+    /**
+     * Returns true if the post with the specified id is hidden for this device.
+     *
+     * @param id of post
+     * @return true if hidden
+     */
+    public synchronized boolean isPostHidden(int id) {
+        return tables[HIDDEN_POSTS].indexOf(id) >= 0;
+    }
+
+    /**
+     * Sets whether the post with the specified id is hidden for this device.
+     *
+     * @param id        of post
+     * @param hidden    true if should hide
+     * @param expiresAt time the post expires at, in millis since the epoch
+     */
+    public synchronized void setPostHidden(int id, boolean hidden, long expiresAt) {
+        if (hidden)
+            put(HIDDEN_POSTS, id, expiresAt, null);
+        else
+            remove(HIDDEN_POSTS, id);
+    }
+
+    /**
+     * Returns true if the comment with the specified id is hidden for this device.
+     *
+     * @param id of comment
+     * @return true if hidden
+     */
+    public synchronized boolean isCommentHidden(int id) {
+        return tables[HIDDEN_COMMENTS].indexOf(id) >= 0;
+    }
+
+    /**
+     * Sets whether the comment with the specified id is hidden for this device.
+     *
+     * @param id     of comment
+     * @param hidden true if should hide
+     */
+    public synchronized void setCommentHidden(int id, boolean hidden) {
+        if (hidden)
+            put(HIDDEN_COMMENTS, id, System.currentTimeMillis() + MAX_LIFETIME, null);
+        else
+            remove(HIDDEN_COMMENTS, id);
+    }
+
+    /**
+     * Returns the client secret of the post with the specified id.
+     *
+     * @param id of post
+     * @return client secret or null if the post was not created on this device
+     */
+    public synchronized String getPostSecret(int id) {
+        return tables[POST_SECRETS].get(id);
+    }
+
+    /**
+     * Keeps the client secret of the post with the specified id.
+     *
+     * @param id        of post
+     * @param secret    client secret
+     * @param expiresAt time the post expires at, in millis since the epoch
+     */
+    public synchronized void putPostSecret(int id, String secret, long expiresAt) {
+        put(POST_SECRETS, id, expiresAt, secret);
+    }
+
+    /**
+     * Returns the client secret of the comment with the specified id.
+     *
+     * @param id of comment
+     * @return client secret or null if the comment was not created on this device
+     */
+    public synchronized String getCommentSecret(int id) {
+        return tables[COMMENT_SECRETS].get(id);
+    }
+
+    /**
+     * Keeps the client secret of the comment with the specified id.
+     *
+     * @param id     of comment
+     * @param secret client secret
+     */
+    public synchronized void putCommentSecret(int id, String secret) {
+        put(COMMENT_SECRETS, id, System.currentTimeMillis() + MAX_LIFETIME, secret);
+    }
+
+    /**
+     * Writes out pending changes right away rather than after the {@link #FLUSH_DELAY}, e.g.
+     * when the app goes to the background and may be killed.
+     */
+    public synchronized void flush() {
+        if (pending.size() == 0)
+            return;
+        flushScheduled = true;
+        writer.execute(this::write);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LocalStateStore{hiddenPosts=" + tables[HIDDEN_POSTS].size
+                + ", hiddenComments=" + tables[HIDDEN_COMMENTS].size
+                + ", postSecrets=" + tables[POST_SECRETS].size
+                + ", commentSecrets=" + tables[COMMENT_SECRETS].size
+                + ", records=" + records + '}';
+    }
+
+    private void put(int table, int id, long expiresAt, String secret) {
+        if (!tables[table].put(id, expiresAt, secret))
+            return; // unchanged
+        try {
+            pendingOut.writeByte(table << 1);
+            pendingOut.writeInt(id);
+            pendingOut.writeLong(expiresAt);
+            if (tables[table].values != null)
+                pendingOut.writeUTF(secret);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // never thrown by a ByteArrayOutputStream
+        }
+        scheduleFlush();
+    }
+
+    private void remove(int table, int id) {
+        if (!tables[table].remove(id))
+            return;
+        try {
+            pendingOut.writeByte(table << 1 | OP_REMOVE);
+            pendingOut.writeInt(id);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        records++;
+        if (flushScheduled)
+            return;
+        flushScheduled = true;
+        writer.schedule(this::write, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void write() {
+        // called on the writer thread, which is the only one to touch the file after loading
+        byte[] bytes = null;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.size() == 0)
+                return;
+            if (records <= live() * 2 + COMPACT_SLACK) {
+                bytes = pending.toByteArray();
+                pending.reset();
+            }
+        }
+
+        if (bytes == null) {
+            compact();
+            return;
+        }
+        try {
+            append(bytes);
+        } catch (IOException e) {
+            G.e("could not write local state", e);
+        }
+    }
+
+    private void compact() {
+        // rewrites the log with only the entries of posts that have not expired yet
+        byte[] bytes;
+        synchronized (this) {
+            prune(System.currentTimeMillis());
+            pending.reset(); // the tables already include the pending changes
+            records = live();
+            bytes = snapshot();
+        }
+        try {
+            replace(bytes);
+        } catch (IOException e) {
+            G.e("could not compact local state", e);
+        }
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void replace(byte[] bytes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("could not replace " + file);
+    }
+
+    private void load() {
+        // replay the log, a record cut short by the process dying is ignored
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return; // nothing saved yet
+        }
+        boolean corrupt = false;
+        try {
+            int op;
+            while ((op = in.read()) != -1) {
+                int table = op >> 1;
+                if (table < 0 || table >= tables.length)
+                    throw new IOException("unknown record: " + op);
+                int id = in.readInt();
+                if ((op & OP_REMOVE) != 0)
+                    tables[table].remove(id);
+                else {
+                    long expiresAt = in.readLong();
+                    String secret = tables[table].values != null ? in.readUTF() : null;
+                    tables[table].put(id, expiresAt, secret);
+                }
+                records++;
+            }
+        } catch (IOException e) {
+            // the rest of the log is lost, it must not be appended to
+            G.e("could not read local state, keeping what was read", e);
+            corrupt = true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // drop the entries of expired posts, and the records that no longer matter in the
+        // background before anything is appended
+        prune(System.currentTimeMillis());
+        if (corrupt || records > live())
+            writer.execute(this::compact);
+    }
+
+    private void importPreferences(Context c, String name, int table, long expiresAt) {
+        SharedPreferences prefs = c.getSharedPreferences(name, Context.MODE_PRIVATE);
+        Map<String, ?> all = prefs.getAll();
+        if (all.isEmpty())
+            return;
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            Object value = entry.getValue();
+            int id;
+            try {
+                id = Integer.parseInt(entry.getKey());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (tables[table].values != null && value instanceof String)
+                put(table, id, expiresAt, (String) value);
+            else if (tables[table].values == null && Boolean.TRUE.equals(value))
+                put(table, id, expiresAt, null);
+        }
+        prefs.edit().clear().apply();
+        G.i("Imported " + all.size() + " entries from " + name);
+    }
+
+    private void prune(long now) {
+        for (Table table : tables)
+            table.prune(now);
+    }
+
+    private int live() {
+        int count = 0;
+        for (Table table : tables)
+            count += table.size;
+        return count;
+    }
+
+    private byte[] snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int t = 0; t < tables.length; t++) {
+                Table table = tables[t];
+                for (int i = 0; i < table.size; i++) {
+                    out.writeByte(t << 1);
+                    out.writeInt(table.ids[i]);
+                    out.writeLong(table.expirations[i]);
+                    if (table.values != null)
+                        out.writeUTF(table.values[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Ids sorted in parallel arrays with the expiration and, for secrets, the value of each id.
+     */
+    private static class Table {
+        private int[] ids = new int[8];
+        private long[] expirations = new long[8];
+        private String[] values; // null if the table only holds ids
+        private int size;
+
+        private Table(boolean hasValues) {
+            if (hasValues)
+                values = new String[8];
+        }
+
+        private int indexOf(int id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        private String get(int id) {
+            int i = indexOf(id);
+            return i >= 0 ? values[i] : null;
+        }
+
+        private boolean put(int id, long expiresAt, String value) {
+            // returns false if the entry is already in the table
+            int i = indexOf(id);
+            if (i >= 0) {
+                if (expirations[i] == expiresAt
+                        && (values == null || values[i].equals(value)))
+                    return false;
+                expirations[i] = expiresAt;
+                if (values != null)
+                    values[i] = value;
+                return true;
+            }
+
+            i = ~i;
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                expirations = Arrays.copyOf(expirations, capacity);
+                if (values != null)
+                    values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            System.arraycopy(expirations, i, expirations, i + 1, size - i);
+            ids[i] = id;
+            expirations[i] = expiresAt;
+            if (values != null) {
+                System.arraycopy(values, i, values, i + 1, size - i);
+                values[i] = value;
+            }
+            size++;
+            return true;
+        }
+
+        private boolean remove(int id) {
+            int i = indexOf(id);
+            if (i < 0)
+                return false;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            System.arraycopy(expirations, i + 1, expirations, i, size - i - 1);
+            if (values != null) {
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                values[size - 1] = null;
+            }
+            size--;
+            return true;
+        }
+
+        private void prune(long now) {
+            // compacts the arrays in place, keeping the order
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (expirations[i] <= now)
+                    continue;
+                ids[kept] = ids[i];
+                expirations[kept] = expirations[i];
+                if (values != null)
+                    values[kept] = values[i];
+                kept++;
+            }
+            if (values != null)
+                Arrays.fill(values, kept, size, null);
+            size = kept;
+        }
+    }
+}
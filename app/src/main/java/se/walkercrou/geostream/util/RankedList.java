@@ -0,0 +1,28 @@
+package se.walkercrou.geostream.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The top results of a query that was limited by the server, along with the amount of results
+ * that were left out.
+ *
+ * @param <T> type of result
+ */
+public class RankedList<T> extends ArrayList<T> {
+    private final int overflowCount;
+
+    public RankedList(Collection<? extends T> results, int overflowCount) {
+        super(results);
+        this.overflowCount = overflowCount;
+    }
+
+    /**
+     * Returns the amount of results that matched the query but were left out.
+     *
+     * @return amount of results left out
+     */
+    public int getOverflowCount() {
+        return overflowCount;
+    }
+}
@@ -0,0 +1,172 @@
+package se.walkercrou.geostream.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a Web Mercator map tile. The world is split into 2^zoom by 2^zoom tiles, numbered from
+ * the north west corner. This must match the tiling used by the server.
+ */
+public final class Tile {
+    private static final double MAX_LAT = 85.0511287798; // the mercator projection cuts off here
+
+    private final int x, y, zoom;
+
+    public Tile(int x, int y, int zoom) {
+        this.x = x;
+        this.y = y;
+        this.zoom = zoom;
+    }
+
+    /**
+     * Returns the tile that contains the specified coordinates.
+     *
+     * @param lat  latitude
+     * @param lng  longitude
+     * @param zoom zoom level
+     * @return tile
+     */
+    public static Tile of(double lat, double lng, int zoom) {
+        int n = 1 << zoom;
+        lat = Math.max(-MAX_LAT, Math.min(MAX_LAT, lat));
+        double latRad = Math.toRadians(lat);
+        int x = (int) Math.floor((lng + 180) / 360 * n);
+        int y = (int) Math.floor((1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI)
+                / 2 * n);
+        return new Tile(clamp(x, n), clamp(y, n), zoom);
+    }
+
+    /**
+     * Parses a tile in the format of {@link #toString()}.
+     *
+     * @param str  to parse, e.g. "70406:42988"
+     * @param zoom zoom level
+     * @return tile or null if malformed
+     */
+    public static Tile parse(String str, int zoom) {
+        int sep = str.indexOf(':');
+        if (sep == -1)
+            return null;
+        try {
+            return new Tile(Integer.parseInt(str.substring(0, sep)),
+                    Integer.parseInt(str.substring(sep + 1)), zoom);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns all tiles that intersect the specified range.
+     *
+     * @param fromLat lower latitude
+     * @param toLat   upper latitude
+     * @param fromLng lower longitude
+     * @param toLng   upper longitude
+     * @param zoom    zoom level
+     * @return tiles within range
+     */
+    public static List<Tile> covering(double fromLat, double toLat, double fromLng, double toLng,
+                                      int zoom) {
+        // tile y grows southwards
+        Tile nw = of(toLat, fromLng, zoom), se = of(fromLat, toLng, zoom);
+        List<Tile> tiles = new ArrayList<>();
+        for (int x = nw.x; x <= se.x; x++) {
+            for (int y = nw.y; y <= se.y; y++)
+                tiles.add(new Tile(x, y, zoom));
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns the x coordinate of this tile.
+     *
+     * @return x coordinate
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y coordinate of this tile.
+     *
+     * @return y coordinate
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the zoom level of this tile.
+     *
+     * @return zoom level
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Returns the latitude of the north edge of this tile, which belongs to this tile.
+     *
+     * @return north latitude
+     */
+    public double getNorth() {
+        return lat(y, zoom);
+    }
+
+    /**
+     * Returns the latitude of the south edge of this tile, which belongs to the tile below.
+     *
+     * @return south latitude
+     */
+    public double getSouth() {
+        return lat(y + 1, zoom);
+    }
+
+    /**
+     * Returns the longitude of the west edge of this tile, which belongs to this tile.
+     *
+     * @return west longitude
+     */
+    public double getWest() {
+        return (double) x / (1 << zoom) * 360 - 180;
+    }
+
+    /**
+     * Returns the longitude of the east edge of this tile, which belongs to the tile to the right.
+     *
+     * @return east longitude
+     */
+    public double getEast() {
+        return (double) (x + 1) / (1 << zoom) * 360 - 180;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Tile))
+            return false;
+        Tile tile = (Tile) o;
+        return x == tile.x && y == tile.y && zoom == tile.zoom;
+    }
+
+    @Override
+    public int hashCode() {
+        return (zoom * 31 + x) * 31 + y;
+    }
+
+    @Override
+    public String toString() {
+        // e.g. "70406:42988", the format expected by the server
+        return x + ":" + y;
+    }
+
+    private static double lat(int y, int zoom) {
+        // inverse of the projection in of()
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / (1 << zoom)))));
+    }
+
+    private static int clamp(int i, int n) {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+}
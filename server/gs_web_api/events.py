@@ -0,0 +1,61 @@
+import threading
+import time
+
+# notified whenever this process has committed post events, the generation counts the notifications
+_changed = threading.Condition()
+_generation = 0
+
+# the longest a waiting request goes without checking the database, only so that events committed by another process
+# (e.g. deleted from the admin site or by another worker) are noticed eventually
+FALLBACK_INTERVAL = 15.0
+
+# the most requests that may be waiting for events at once, so that long-polls cannot hold every worker
+MAX_WAITING = 16
+_waiting = threading.BoundedSemaphore(MAX_WAITING)
+
+
+def notify():
+    """
+    Wakes all requests in this process that are waiting for post events. Must be called once the events have been
+    committed.
+    """
+    global _generation
+    with _changed:
+        _generation += 1
+        _changed.notify_all()
+
+
+def generation():
+    """
+    Returns the current generation, to be read before checking the database for events and passed to wait() after.
+    """
+    with _changed:
+        return _generation
+
+
+def wait(seen, deadline):
+    """
+    Blocks until notify() is called after the specified generation was read, or until the FALLBACK_INTERVAL or the
+    specified time.time() deadline passes, whichever comes first. Returns immediately if notify() has already been
+    called. Returns False once the deadline has passed.
+    """
+    with _changed:
+        if _generation != seen:
+            return True
+        remaining = deadline - time.time()
+        if remaining <= 0:
+            return False
+        _changed.wait(min(remaining, FALLBACK_INTERVAL))
+    return True
+
+
+def acquire_waiter():
+    """
+    Reserves one of the MAX_WAITING places for a waiting request. Returns False if all places are taken, otherwise
+    release_waiter() must be called once the request is done waiting.
+    """
+    return _waiting.acquire(False)
+
+
+def release_waiter():
+    _waiting.release()
@@ -1,8 +1,10 @@
 from django.core.validators import MinValueValidator, MaxValueValidator
 from django.db import models
-from django.db.models.signals import pre_delete
+from django.db.models import Q
+from django.db.models.signals import post_save, pre_delete
 from django.dispatch.dispatcher import receiver
 from django.utils import timezone
+import datetime
 import uuid
 
 
@@ -12,11 +14,13 @@ class Post(models.Model):
     where the post was created, either a video or image file of the media that was captured, the "lifetime" of the post
     in hours, and a "client secret" that allows the client to make modifications to the post in the future.
     """
+    MAX_LIFETIME = 24  # hours
+
     created = models.DateTimeField(auto_now_add=True)  # date post was created
     lat = models.FloatField(validators=[MinValueValidator(-90), MaxValueValidator(90)])  # latitudinal coordinate
     lng = models.FloatField(validators=[MinValueValidator(-180), MaxValueValidator(180)])  # longitudinal coordinate
     media_file = models.FileField(upload_to='posts')
-    lifetime = models.IntegerField(validators=[MinValueValidator(1), MaxValueValidator(24)])  # post lifetime in hours
+    lifetime = models.IntegerField(validators=[MinValueValidator(1), MaxValueValidator(MAX_LIFETIME)])  # in hours
     # returned on creation for deletion
     client_secret = models.UUIDField(primary_key=False, default=uuid.uuid4, editable=False)
 
@@ -30,6 +34,18 @@ class Post(models.Model):
         hours = mins[0] / 60
         return hours >= self.lifetime
 
+    @staticmethod
+    def expired():
+        """
+        Returns a filter for the posts that is_expired() is true for, so that they can be found by the database. There
+        are only a few whole hour lifetimes, so the filter compares the creation date once per lifetime.
+        """
+        now = timezone.now()
+        q = Q(lifetime__lt=1)
+        for hours in range(1, Post.MAX_LIFETIME + 1):
+            q |= Q(lifetime=hours, created__lte=now - datetime.timedelta(hours=hours))
+        return q
+
 
 @receiver(pre_delete, sender=Post)
 def post_delete(sender, instance, **kwargs):
@@ -37,6 +53,7 @@ def post_delete(sender, instance, **kwargs):
     Called before a Post is deleted. Cleans up the media_file, deletes associated comments and flags.
     """
     instance.media_file.delete(False)  # delete the models media_file when a Post is deleted
+    PostEvent.record(PostEvent.TYPE_EXPIRED if instance.is_expired() else PostEvent.TYPE_DELETED, instance)
 
     # delete comments associated with post
     comments = Comment.objects.filter(post=instance.id)
@@ -49,6 +66,66 @@ def post_delete(sender, instance, **kwargs):
         flag.delete()
 
 
+@receiver(post_save, sender=Post)
+def post_create(sender, instance, created, **kwargs):
+    """
+    Called after a Post is saved. Tells subscribed clients about new posts.
+    """
+    if created:
+        PostEvent.record(PostEvent.TYPE_CREATED, instance)
+
+
+class PostEvent(models.Model):
+    """
+    Represents a change to the posts on the map, so that clients subscribed to an area are told about it instead of
+    having to poll for it. Events consist of what happened, the id, location and lifetime of the post it happened to,
+    and the creation date of that post. Events are numbered in order and clients use the id of the last event they
+    have seen as a cursor.
+    """
+    TYPE_CREATED = 'created'
+    TYPE_DELETED = 'deleted'
+    TYPE_EXPIRED = 'expired'
+
+    TYPE_CHOICES = (
+        (TYPE_CREATED, 'Created'),
+        (TYPE_DELETED, 'Deleted'),
+        (TYPE_EXPIRED, 'Expired'),
+    )
+
+    type = models.CharField(max_length=7, choices=TYPE_CHOICES)
+    post = models.IntegerField()  # not a foreign key, the post no longer exists for most events
+    lat = models.FloatField()
+    lng = models.FloatField()
+    lifetime = models.IntegerField()
+    post_created = models.DateTimeField()
+    created = models.DateTimeField(auto_now_add=True)  # date of the event
+
+    class Meta:
+        ordering = ('id',)
+
+    @classmethod
+    def record(cls, event_type, post):
+        """
+        Records an event for the specified post. The view that made the change wakes the requests waiting for events
+        with events.notify() once it has been committed.
+        """
+        cls.objects.create(type=event_type, post=post.id, lat=post.lat, lng=post.lng, lifetime=post.lifetime,
+                           post_created=post.created)
+
+
+class CreateRequest(models.Model):
+    """
+    Remembers the object that a create request made by the idempotency key the client generated for it. Clients retry
+    creates whose response never arrived, and the retry is answered with the same object instead of creating another.
+    """
+    KEY_LENGTH = 64
+
+    key = models.CharField(max_length=KEY_LENGTH, unique=True)
+    model = models.CharField(max_length=16)  # name of the model created, e.g. 'post'
+    object_id = models.IntegerField()  # not a foreign key, the object may be of any model and may be deleted since
+    created = models.DateTimeField(auto_now_add=True)
+
+
 class Comment(models.Model):
     """
     Represents a comment that a client has made on an existing Post. Comments consist of a reference to the Post that
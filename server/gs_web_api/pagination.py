@@ -0,0 +1,27 @@
+from rest_framework.pagination import CursorPagination
+from rest_framework.response import Response
+
+
+class LinkHeaderCursorPagination(CursorPagination):
+    """
+    Cursor pagination ordered by creation date, then by primary key so that resources created at the same time keep
+    the same order from one page to the next. The body of a page stays a plain list of results, the URL of the next
+    page is given in a 'Link: <url>; rel="next"' header instead so that a page looks the same to the client as an
+    unpaginated list.
+    """
+    ordering = ('created', 'pk')
+    page_size = 50
+    page_size_query_param = 'page_size'
+    max_page_size = 200
+
+    def get_link_headers(self):
+        """
+        Returns the headers that link to the pages around the current one.
+        """
+        next_link = self.get_next_link()
+        if next_link is None:
+            return {}
+        return {'Link': '<%s>; rel="next"' % next_link}
+
+    def get_paginated_response(self, data):
+        return Response(data, headers=self.get_link_headers())
@@ -0,0 +1,82 @@
+import calendar
+import datetime
+import struct
+from rest_framework.renderers import BaseRenderer
+
+
+class BinaryRenderer(BaseRenderer):
+    """
+    Renders responses in a compact binary encoding, the subset of MessagePack made of nil, booleans, integers, floats,
+    UTF-8 strings, arrays and maps. Datetimes are written as integers of milliseconds since the epoch so that clients
+    do not have to parse them. Any other value is written as its string form.
+    """
+    media_type = 'application/x-geostream-bin'
+    format = 'bin'
+    charset = None
+    render_style = 'binary'
+
+    def render(self, data, accepted_media_type=None, renderer_context=None):
+        if data is None:
+            return b''
+        out = bytearray()
+        self.write(out, data)
+        return bytes(out)
+
+    def write(self, out, value):
+        if value is None:
+            out.append(0xc0)
+        elif isinstance(value, bool):
+            out.append(0xc3 if value else 0xc2)
+        elif isinstance(value, int):
+            self.write_int(out, value)
+        elif isinstance(value, float):
+            out.append(0xcb)
+            out.extend(struct.pack('>d', value))
+        elif isinstance(value, datetime.datetime):
+            millis = calendar.timegm(value.utctimetuple()) * 1000 + value.microsecond // 1000
+            self.write_int(out, millis)
+        elif isinstance(value, dict):
+            self.write_header(out, len(value), 0x80, 0xde, 0xdf)
+            for key, item in value.items():
+                self.write(out, str(key))
+                self.write(out, item)
+        elif isinstance(value, (list, tuple)):
+            self.write_header(out, len(value), 0x90, 0xdc, 0xdd)
+            for item in value:
+                self.write(out, item)
+        else:
+            # strings, as well as dates, decimals, uuids and lazy translations in their string form
+            encoded = str(value).encode('utf-8')
+            if len(encoded) < 32:
+                out.append(0xa0 | len(encoded))
+            elif len(encoded) <= 0xff:
+                out.append(0xd9)
+                out.append(len(encoded))
+            else:
+                self.write_header(out, len(encoded), None, 0xda, 0xdb)
+            out.extend(encoded)
+
+    @staticmethod
+    def write_int(out, value):
+        if 0 <= value <= 0x7f:
+            out.append(value)  # positive fixint
+        elif -32 <= value < 0:
+            out.append(value & 0xff)  # negative fixint
+        elif -2 ** 31 <= value < 2 ** 31:
+            out.append(0xd2)
+            out.extend(struct.pack('>i', value))
+        else:
+            out.append(0xd3)
+            out.extend(struct.pack('>q', value))
+
+    @staticmethod
+    def write_header(out, size, fix, type16, type32):
+        # writes the type and size of a map, array or string
+        if fix is not None and size < 16:
+            out.append(fix | size)
+        elif size <= 0xffff:
+            out.append(type16)
+            out.extend(struct.pack('>H', size))
+        else:
+            out.append(type32)
+            out.extend(struct.pack('>I', size))
@@ -1,5 +1,5 @@
 from rest_framework import serializers
-from .models import Post, Comment, Flag
+from .models import Post, PostEvent, Comment, Flag
 
 
 class FlagSerializer(serializers.ModelSerializer):
@@ -20,3 +20,21 @@ class PostSerializer(serializers.ModelSerializer):
     class Meta:
         model = Post
         fields = ('id', 'created', 'lat', 'lng', 'lifetime', 'media_file', 'comments')
+
+
+class PostSummarySerializer(serializers.ModelSerializer):
+    """
+    Lightweight projection of a post with only what's needed to place it on a map. The comment count must be annotated
+    on the queryset.
+    """
+    comment_count = serializers.IntegerField(read_only=True)
+
+    class Meta:
+        model = Post
+        fields = ('id', 'created', 'lat', 'lng', 'lifetime', 'comment_count')
+
+
+class PostEventSerializer(serializers.ModelSerializer):
+    class Meta:
+        model = PostEvent
+        fields = ('id', 'type', 'post', 'lat', 'lng', 'lifetime', 'post_created', 'created')
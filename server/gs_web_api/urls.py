@@ -10,6 +10,8 @@ router.register(r'comments', views.CommentViewSet)
 router.register(r'flags', views.FlagViewSet)
 
 urlpatterns = [
+    # ordered creates and deletes in one request
+    url(r'^batch/$', views.BatchView.as_view()),
     # include URLs created by the router
     url(r'^', include(router.urls)),
 ]
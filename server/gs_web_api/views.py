@@ -1,24 +1,257 @@
+import datetime
+import hashlib
+import json
+import math
+import time
+from collections import OrderedDict
+from django.db import DatabaseError, IntegrityError, transaction
+from django.db.models import Count, Q
+from django.utils import timezone
+from django.utils.dateparse import parse_datetime
 from rest_framework import viewsets
-from .models import Post, Comment, Flag
-from .serializers import PostSerializer, CommentSerializer, FlagSerializer
+from . import events
+from .models import Post, PostEvent, CreateRequest, Comment, Flag
+from .serializers import PostSerializer, PostSummarySerializer, PostEventSerializer, CommentSerializer, FlagSerializer
 from rest_framework import status
 from rest_framework.decorators import list_route
 from rest_framework.response import Response
+from rest_framework.utils.encoders import JSONEncoder
+from rest_framework.views import APIView
 from .permissions import ClientSecretPermission, UserAgentPermission
 
 
-def inject_client_secret(serializer):
+# the header (as found in request.META) and the batch operation field that carry the key a client generated for a
+# create request, so that retrying the request does not create the object twice
+IDEMPOTENCY_KEY_HEADER = 'HTTP_IDEMPOTENCY_KEY'
+IDEMPOTENCY_KEY_FIELD = 'idempotency_key'
+
+# how long the keys of create requests are kept, clients stop retrying long before
+CREATE_REQUEST_RETENTION = datetime.timedelta(days=7)
+
+
+def create_once(serializer, key=None):
     """
-    Injects a models 'client_secret' field into a request response. Client secrets are only returned on the initial
-    creation of an object.
+    Creates the object in the specified serializer and returns the (status, data) to respond with. The data includes
+    the 'client_secret' field, since client secrets are only returned on the initial creation of an object. If a
+    request with the same idempotency key already created an object, nothing is created and that object is returned
+    again instead, or 410 Gone if it has been deleted since.
     """
-    if (serializer.is_valid()):
-        obj = serializer.save()
-        data = serializer.data
+    if key is not None:
+        key = '%s' % key  # batch operations may carry any JSON value
+        if not 0 < len(key) <= CreateRequest.KEY_LENGTH:
+            return status.HTTP_400_BAD_REQUEST, {'detail': 'Malformed idempotency key.'}
+    model = serializer.Meta.model._meta.model_name
+    if key is not None:
+        created = replay_create(serializer, model, key)
+        if created is not None:
+            return created
+
+    if not serializer.is_valid():
+        return status.HTTP_400_BAD_REQUEST, serializer.errors
+    try:
+        with transaction.atomic():
+            obj = serializer.save()
+            if key is not None:
+                CreateRequest.objects.create(key=key, model=model, object_id=obj.pk)
+    except IntegrityError:
+        # a retry of the same request got there first, or the data conflicts with an existing object
+        created = replay_create(serializer, model, key) if key is not None else None
+        if created is None:
+            raise
+        return created
+    return status.HTTP_201_CREATED, with_client_secret(serializer.data, obj)
+
+
+def replay_create(serializer, model, key):
+    """
+    Returns the (status, data) to respond with if a request with the specified idempotency key already created an
+    object of the specified model, otherwise None.
+    """
+    request = CreateRequest.objects.filter(key=key, model=model).first()
+    if request is None:
+        return None
+    obj = serializer.Meta.model.objects.filter(pk=request.object_id).first()
+    if obj is None:
+        return status.HTTP_410_GONE, {'detail': 'Already created and since deleted.'}
+    return status.HTTP_200_OK, with_client_secret(type(serializer)(obj, context=serializer.context).data, obj)
+
+
+def with_client_secret(data, obj):
+    """
+    Injects a models 'client_secret' field, if it has one, into the serialized data of a newly created object.
+    """
+    if hasattr(obj, 'client_secret'):
         data['client_secret'] = obj.client_secret
-        return Response(data)
-    else:
-        return Response(serializer.errors, status=status.HTTP_400_BAD_REQUEST)
+    return data
+
+
+def created_response(request, serializer):
+    """
+    Returns the response to a regular create request, see create_once().
+    """
+    code, data = create_once(serializer, request.META.get(IDEMPOTENCY_KEY_HEADER))
+    return Response(data, status=code)
+
+
+def normalize_etag(tag):
+    """
+    Returns the specified ETag as conditional_response() computed it. GZipMiddleware marks the ETags of the responses it
+    compresses, appending ';gzip' inside the quotes (Django 1.8) or making them weak with 'W/' (later versions), and
+    clients send back the marked tag.
+    """
+    tag = tag.strip()
+    if tag.startswith('W/'):
+        tag = tag[2:]
+    if tag.endswith(';gzip"'):
+        tag = tag[:-len(';gzip"')] + '"'
+    return tag
+
+
+def conditional_response(request, data, headers=None):
+    """
+    Returns a response for the specified data and headers with a strong ETag computed from both and the negotiated
+    media type, since each encoding of the same data is a different representation. If the client already has the
+    current version (i.e. it sent a matching 'If-None-Match' header), an empty 304 Not Modified response with the same
+    headers is returned instead.
+    """
+    headers = dict(headers or {})
+    media_type = getattr(request, 'accepted_media_type', None)
+    content = json.dumps([data, headers, media_type], cls=JSONEncoder, sort_keys=True, separators=(',', ':'))
+    etag = '"%s"' % hashlib.sha1(content.encode('utf-8')).hexdigest()
+    headers['ETag'] = etag
+    headers['Vary'] = 'Accept'
+
+    if_none_match = request.META.get('HTTP_IF_NONE_MATCH')
+    if if_none_match and etag in [normalize_etag(tag) for tag in if_none_match.split(',')]:
+        return Response(status=status.HTTP_304_NOT_MODIFIED, headers=headers)
+    return Response(data, headers=headers)
+
+
+# the most tiles a client may request at once
+MAX_TILES = 64
+
+
+def paginated_response(view, request, queryset):
+    """
+    Returns a conditional response for the page of the specified queryset that was requested. The link to the next
+    page is included in the headers.
+    """
+    page = view.paginate_queryset(queryset)
+    serializer = view.get_serializer(page, many=True)
+    return conditional_response(request, serializer.data, view.paginator.get_link_headers())
+
+
+# the most posts returned by range, or per tile by tiles, no matter what limit is requested
+MAX_RANGE_LIMIT = 200
+
+# orderings that range and tiles rank posts by with '?order=<name>'
+RANGE_ORDERINGS = {
+    'recent': ('-created',),
+    'active': ('-activity', '-created'),
+}
+
+
+def delete_expired(posts):
+    """
+    Deletes the expired posts of the specified queryset, which should only be filtered so that the database can find
+    the expired posts without loading anything else. If any were deleted, the events and the keys of create requests
+    that are no longer kept are dropped and the requests waiting for events are woken.
+    """
+    deleted = False
+    for post in posts.filter(Post.expired()).only('id', 'created', 'lat', 'lng', 'lifetime', 'media_file'):
+        post.delete()  # one by one so that the media file is deleted and an event recorded, see models.post_delete()
+        deleted = True
+    if deleted:
+        prune_events()
+        CreateRequest.objects.filter(created__lt=timezone.now() - CREATE_REQUEST_RETENTION).delete()
+        events.notify()
+
+
+def prune_events():
+    """
+    Drops the events older than EVENT_RETENTION, always keeping the latest so that the cursor survives quiet periods.
+    """
+    latest = PostEvent.objects.order_by('-id').values_list('id', flat=True).first()
+    if latest is not None:
+        PostEvent.objects.filter(created__lt=timezone.now() - EVENT_RETENTION).exclude(pk=latest).delete()
+
+
+def ranking(request):
+    """
+    Returns the (ordering, limit) requested with '?order=recent|active' and '?limit=<n>'. Posts are ranked by recency
+    and limited to MAX_RANGE_LIMIT by default. Raises a ValueError if either is malformed.
+    """
+    data = request.query_params
+    order = data.get('order', 'recent')
+    limit = int(data.get('limit', MAX_RANGE_LIMIT))
+    if order not in RANGE_ORDERINGS or limit < 0:
+        raise ValueError(order)
+    return RANGE_ORDERINGS[order], min(limit, MAX_RANGE_LIMIT)
+
+
+def top_posts(posts, ordering, limit):
+    """
+    Returns the top posts of the specified queryset along with the amount of posts that were left out.
+    """
+    if '-activity' in ordering:
+        posts = posts.annotate(activity=Count('comments'))
+    top = list(posts.order_by(*ordering)[:limit])
+    overflow = posts.count() - len(top) if len(top) == limit else 0
+    return top, overflow
+
+
+# latitude at which the mercator projection is cut off
+MAX_TILE_LAT = 85.0511287798
+
+# how long events are kept for clients to catch up on after being disconnected
+EVENT_RETENTION = datetime.timedelta(hours=1)
+
+# how long (in seconds) an events request waits for events by default and at most
+EVENT_TIMEOUT = 25
+MAX_EVENT_TIMEOUT = 55
+
+# the most events looked at each time an events request checks for events
+MAX_EVENTS = 500
+
+
+def tile_bounds(x, y, zoom):
+    """
+    Returns the (fromLat, toLat, fromLng, toLng) bounds of the Web Mercator tile at the specified coordinates and zoom
+    level. This must match the tiling used by the client.
+    """
+    n = 2.0 ** zoom
+
+    def lat(tile_y):
+        return math.degrees(math.atan(math.sinh(math.pi * (1 - 2 * tile_y / n))))
+
+    return lat(y + 1), lat(y), x / n * 360.0 - 180.0, (x + 1) / n * 360.0 - 180.0
+
+
+def tile_of(lat, lng, zoom):
+    """
+    Returns the (x, y) coordinates of the Web Mercator tile that contains the specified location at the specified zoom
+    level. This must match the tiling used by the client.
+    """
+    n = 2 ** zoom
+    lat = math.radians(max(-MAX_TILE_LAT, min(MAX_TILE_LAT, lat)))
+    x = int(math.floor((lng + 180.0) / 360.0 * n))
+    y = int(math.floor((1 - math.log(math.tan(lat) + 1 / math.cos(lat)) / math.pi) / 2 * n))
+    return max(0, min(n - 1, x)), max(0, min(n - 1, y))
+
+
+def parse_tiles(request):
+    """
+    Returns the (zoom, tiles) requested with '?zoom=<n>&tiles=x:y,x:y,...'. Raises a ValueError if either is missing or
+    malformed.
+    """
+    data = request.query_params
+    if 'zoom' not in data or 'tiles' not in data:
+        raise ValueError('zoom and tiles are required')
+    zoom = int(data['zoom'])
+    tiles = [tuple(int(i) for i in tile.split(':')) for tile in data['tiles'].split(',')]
+    if zoom < 0 or len(tiles) > MAX_TILES or any(len(tile) != 2 for tile in tiles):
+        raise ValueError(data['tiles'])
+    return zoom, tiles
 
 
 class PostViewSet(viewsets.ModelViewSet):
@@ -27,47 +260,164 @@ class PostViewSet(viewsets.ModelViewSet):
     http_method_names = ['get', 'post', 'head', 'delete']
     permission_classes = (ClientSecretPermission, UserAgentPermission,)
 
+    # list routes that may return summaries instead of full posts with '?view=summary'
+    summary_actions = ('range', 'tiles')
+
+    def get_serializer_class(self):
+        if self.action in self.summary_actions and self.request.query_params.get('view') == 'summary':
+            return PostSummarySerializer
+        return PostSerializer
+
+    def get_posts(self):
+        """
+        Returns all posts, with their comments counted instead of fetched if summaries are requested.
+        """
+        if self.get_serializer_class() is PostSummarySerializer:
+            return Post.objects.annotate(comment_count=Count('comments'))
+        return Post.objects.prefetch_related('comments')
+
     @list_route()
     def range(self, request):
         """
-        Returns a list view of the posts within a specified lat/lng range.
+        Returns a list view of the top posts within a specified lat/lng range, ranked and limited as described by
+        ranking(). The amount of posts in range that were left out is given in an 'X-Overflow-Count' header.
         """
         data = request.query_params
         # make sure range parameters are present
         if 'fromLat' not in data or 'toLat' not in data or 'fromLng' not in data or 'toLng' not in data:
             return Response(status=status.HTTP_400_BAD_REQUEST)
 
-        fromLat = float(data['fromLat'])
-        toLat = float(data['toLat'])
-        fromLng = float(data['fromLng'])
-        toLng = float(data['toLng'])
-
-        # find posts that are within the range
-        posts = Post.objects.all()
-        inRange = []
-        for post in posts:
-            if post.lat >= fromLat and post.lat <= toLat and post.lng >= fromLng and post.lng <= toLng:
-                # post is in range
-                if post.is_expired():
-                    post.delete()  # delete in-range post if expired
-                else:
-                    inRange.append(post)  # otherwise, add to response list
+        try:
+            fromLat = float(data['fromLat'])
+            toLat = float(data['toLat'])
+            fromLng = float(data['fromLng'])
+            toLng = float(data['toLng'])
+            ordering, limit = ranking(request)
+        except ValueError:
+            return Response(status=status.HTTP_400_BAD_REQUEST)
+
+        # find posts that are within the range, deleting expired ones
+        bounds = Q(lat__gte=fromLat, lat__lte=toLat, lng__gte=fromLng, lng__lte=toLng)
+        delete_expired(Post.objects.filter(bounds))
+        inRange, overflow = top_posts(self.get_posts().filter(bounds), ordering, limit)
 
         # return list of posts
         serializer = self.get_serializer(inRange, many=True)
-        return Response(serializer.data)
+        return conditional_response(request, serializer.data, {'X-Overflow-Count': str(overflow)})
+
+    @list_route()
+    def tiles(self, request):
+        """
+        Returns a list view of the posts within the specified map tiles. Tiles are given as 'x:y' pairs separated by
+        commas, e.g. '?zoom=17&tiles=70406:42988,70407:42988'. A tile includes its south and west edges but not its
+        north and east edges so that every post belongs to exactly one tile. The limit and order of ranking() apply to
+        each tile, the tiles that had posts left out are given in an 'X-Tile-Overflow-Counts' header, e.g.
+        '70406:42988=12,70407:42988=3'.
+        """
+        try:
+            zoom, tiles = parse_tiles(request)
+            ordering, limit = ranking(request)
+        except ValueError:
+            return Response(status=status.HTTP_400_BAD_REQUEST)
+
+        # find the top posts within each of the tiles, deleting expired ones
+        inTiles = []
+        overflows = []
+        for x, y in sorted(set(tiles)):
+            fromLat, toLat, fromLng, toLng = tile_bounds(x, y, zoom)
+            bounds = Q(lat__gte=fromLat, lat__lt=toLat, lng__gte=fromLng, lng__lt=toLng)
+            delete_expired(Post.objects.filter(bounds))
+            top, overflow = top_posts(self.get_posts().filter(bounds), ordering, limit)
+            inTiles.extend(top)
+            if overflow > 0:
+                overflows.append('%d:%d=%d' % (x, y, overflow))
+
+        # return list of posts
+        serializer = self.get_serializer(inTiles, many=True)
+        return conditional_response(request, serializer.data, {'X-Tile-Overflow-Counts': ','.join(overflows)})
+
+    @list_route()
+    def events(self, request):
+        """
+        Long-polls for the events of posts within the specified map tiles, given like they are for tiles(). Without
+        '?since=<event id>' the current cursor is returned right away. With it, the request waits up to
+        '?timeout=<seconds>' for events after the cursor within the tiles. The response is a list of those events,
+        empty if none happened in time, with the cursor to continue from in an 'X-Event-Cursor' header. If events
+        after the cursor are no longer kept then 410 Gone is returned and the client must retrieve the tiles again. If
+        too many requests are already waiting then 503 Service Unavailable is returned and the client should retry
+        later.
+        """
+        data = request.query_params
+        try:
+            zoom, tiles = parse_tiles(request)
+            since = int(data['since']) if 'since' in data else None
+            timeout = min(float(data.get('timeout', EVENT_TIMEOUT)), MAX_EVENT_TIMEOUT)
+        except ValueError:
+            return Response(status=status.HTTP_400_BAD_REQUEST)
+
+        latest = PostEvent.objects.order_by('-id').values_list('id', flat=True).first() or 0
+        if since is None:
+            return Response([], headers={'X-Event-Cursor': str(latest)})
+        oldest = PostEvent.objects.order_by('id').values_list('id', flat=True).first()
+        if since > latest or (oldest is not None and oldest > since + 1):
+            return Response(status=status.HTTP_410_GONE)
+
+        # posts that expire in the tiles are only noticed when they are deleted
+        for x, y in set(tiles):
+            fromLat, toLat, fromLng, toLng = tile_bounds(x, y, zoom)
+            delete_expired(Post.objects.filter(lat__gte=fromLat, lat__lt=toLat, lng__gte=fromLng, lng__lt=toLng))
+
+        # check for events whenever this process commits some, see events.wait()
+        tiles = set(tiles)
+        deadline = time.time() + timeout
+        matching = []
+        waiting = False
+        try:
+            while True:
+                seen = events.generation()  # read first so that events committed while checking are not missed
+                new_events = list(PostEvent.objects.filter(pk__gt=since)[:MAX_EVENTS])
+                if new_events:
+                    since = new_events[-1].id
+                    matching = [event for event in new_events if tile_of(event.lat, event.lng, zoom) in tiles]
+                if matching:
+                    break
+                if len(new_events) == MAX_EVENTS:
+                    continue  # there may be more events to look at right away
+                if not waiting:
+                    waiting = events.acquire_waiter()
+                    if not waiting:
+                        return Response(status=status.HTTP_503_SERVICE_UNAVAILABLE,
+                                        headers={'Retry-After': str(EVENT_TIMEOUT)})
+                if not events.wait(seen, deadline):
+                    break
+        finally:
+            if waiting:
+                events.release_waiter()
+
+        serializer = PostEventSerializer(matching, many=True)
+        return Response(serializer.data, headers={'X-Event-Cursor': str(since)})
+
+    def retrieve(self, request, pk=None):
+        # tag the post's details so unchanged posts aren't sent again
+        serializer = self.get_serializer(self.get_object())
+        return conditional_response(request, serializer.data)
 
     def list(self, request):
         # delete all expired posts
-        posts = Post.objects.all()
-        for post in posts:
-            if post.is_expired():
-                post.delete()
-        return viewsets.ModelViewSet.list(self, request)  # after deleting old posts, pass to super method
+        delete_expired(Post.objects.all())
+        # after deleting old posts, return one page of what's left
+        return paginated_response(self, request, self.get_posts())
 
     def create(self, request):
-        # include the client_secret only on initial creation
-        return inject_client_secret(PostSerializer(data=request.data))
+        response = created_response(request, PostSerializer(data=request.data))
+        if response.status_code == status.HTTP_201_CREATED:
+            events.notify()  # the post has been committed, tell the waiting requests
+        return response
+
+    def destroy(self, request, pk=None):
+        response = super(PostViewSet, self).destroy(request, pk=pk)
+        events.notify()
+        return response
 
 
 class CommentViewSet(viewsets.ModelViewSet):
@@ -76,9 +426,37 @@ class CommentViewSet(viewsets.ModelViewSet):
     http_method_names = ['get', 'post', 'head', 'delete']
     permission_classes = (ClientSecretPermission, UserAgentPermission,)
 
+    def list(self, request):
+        """
+        Returns a page of the comments, optionally only those on one post with '?post=<id>' and only those created
+        after a cursor with '?since=<comment id|created date>' so that clients can fetch just the new comments. Both
+        filters are answered by the (post, created) index.
+        """
+        comments = Comment.objects.all()
+        data = request.query_params
+        try:
+            if 'post' in data:
+                comments = comments.filter(post=int(data['post']))
+            if 'since' in data:
+                since = data['since']
+                if since.isdigit():
+                    cursor = Comment.objects.filter(pk=int(since)).first()
+                    if cursor is not None:
+                        comments = comments.filter(created__gt=cursor.created)
+                    else:
+                        comments = comments.filter(pk__gt=int(since))  # cursor was deleted
+                else:
+                    created = parse_datetime(since)
+                    if created is None:
+                        return Response(status=status.HTTP_400_BAD_REQUEST)
+                    comments = comments.filter(created__gt=created)
+        except ValueError:
+            return Response(status=status.HTTP_400_BAD_REQUEST)
+
+        return paginated_response(self, request, comments)
+
     def create(self, request):
-        # include the client_secret only on initial creation
-        return inject_client_secret(CommentSerializer(data=request.data))
+        return created_response(request, CommentSerializer(data=request.data))
 
 
 class FlagViewSet(viewsets.ModelViewSet):
@@ -86,3 +464,94 @@ class FlagViewSet(viewsets.ModelViewSet):
     serializer_class = FlagSerializer
     http_method_names = ['get', 'post', 'head']
     permission_classes = (UserAgentPermission,)
+
+    def create(self, request):
+        return created_response(request, FlagSerializer(data=request.data))
+
+
+# the most operations a client may send in one batch
+MAX_BATCH_OPERATIONS = 50
+
+# resources that may be created in a batch, posts are not included because they require a media upload
+BATCH_CREATE = {
+    'comments': CommentSerializer,
+    'flags': FlagSerializer,
+}
+
+# resources that may be deleted in a batch
+BATCH_DELETE = {
+    'posts': Post,
+    'comments': Comment,
+}
+
+
+def batch_result(status_code, body=None):
+    """
+    Returns the result of a single batch operation. The status is always written first so that the client can decide
+    how to read the body while streaming the response.
+    """
+    return OrderedDict([('status', status_code), ('body', body)])
+
+
+def batch_create(serializer, key):
+    """
+    Creates the resource in the specified serializer and returns the result, including the client_secret and
+    honouring the idempotency key just like a regular create.
+    """
+    code, data = create_once(serializer, key)
+    return batch_result(code, data)
+
+
+def batch_delete(model, pk, client_secret):
+    """
+    Deletes the resource with the specified primary key if the client secret matches, the same as the
+    ClientSecretPermission does for a regular delete.
+    """
+    try:
+        obj = model.objects.get(pk=pk)
+    except (model.DoesNotExist, ValueError, TypeError):
+        return batch_result(status.HTTP_404_NOT_FOUND, {'detail': 'Not found.'})
+    if client_secret is None or str(obj.client_secret) != str(client_secret):
+        return batch_result(status.HTTP_403_FORBIDDEN,
+                            {'detail': 'You do not have permission to perform this action.'})
+    obj.delete()
+    return batch_result(status.HTTP_204_NO_CONTENT)
+
+
+class BatchView(APIView):
+    """
+    Applies an ordered list of create and delete operations in one transaction, e.g.
+    [{"method": "create", "resource": "comments", "data": {"post": 1, "content": "Hello"}, "idempotency_key": "..."},
+     {"method": "delete", "resource": "comments", "id": 2, "client_secret": "..."}]
+    Each operation runs in its own savepoint so that a failed operation does not undo the others. The response is a
+    list with a {"status": ..., "body": ...} result for each operation, in the same order.
+    """
+    permission_classes = (UserAgentPermission,)
+
+    def post(self, request):
+        operations = request.data
+        if not isinstance(operations, list) or len(operations) > MAX_BATCH_OPERATIONS:
+            return Response(status=status.HTTP_400_BAD_REQUEST)
+
+        with transaction.atomic():
+            results = [self.apply(operation) for operation in operations]
+        events.notify()  # posts may have been deleted, tell the waiting requests now that it has been committed
+        return Response(results)
+
+    def apply(self, operation):
+        if not isinstance(operation, dict):
+            return batch_result(status.HTTP_400_BAD_REQUEST)
+        method = operation.get('method')
+        resource = operation.get('resource')
+
+        try:
+            with transaction.atomic():
+                if method == 'create' and resource in BATCH_CREATE:
+                    return batch_create(BATCH_CREATE[resource](data=operation.get('data')),
+                                        operation.get(IDEMPOTENCY_KEY_FIELD))
+                elif method == 'delete' and resource in BATCH_DELETE:
+                    return batch_delete(BATCH_DELETE[resource], operation.get('id'), operation.get('client_secret'))
+                else:
+                    return batch_result(status.HTTP_400_BAD_REQUEST)
+        except DatabaseError:
+            return batch_result(status.HTTP_500_INTERNAL_SERVER_ERROR)